@@ -1,25 +1,67 @@
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.awt.Graphics2D;
-import java.awt.Color;
-import java.awt.Font;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.function.BooleanSupplier;
 
 public class Main {
     private static Map<String, User> users = new ConcurrentHashMap<>();
-    private static Map<String, List<Message>> sessions = new ConcurrentHashMap<>();
+    private static Map<String, SessionLog> sessions = new ConcurrentHashMap<>();
     private static Map<String, UserProfile> profiles = new ConcurrentHashMap<>();
     private static Map<String, UserSettings> settings = new ConcurrentHashMap<>();
-    private static Map<String, Map<String, Set<String>>> messageReactions = new ConcurrentHashMap<>();
-    private static Map<String, Set<String>> typingUsers = new ConcurrentHashMap<>();
-    private static Map<String, Long> lastTypingTime = new ConcurrentHashMap<>();
     private static String baseUrl = "http://10.0.0.95:8082";
+    private static int webSocketPort = 0; // 0 when the WebSocket listener is disabled
+    private static Executor httpExecutor; // null means the HttpServer dispatcher thread
+    
+    // Shared background threads for parked requests, event streams and timers
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("alpha-scheduler"));
+    private static final ExecutorService responseWriters = Executors.newCachedThreadPool(daemonThreads("alpha-writer"));
     
     // Enhanced User class
     static class User {
@@ -30,6 +72,7 @@ public class Main {
         int totalMessages;
         int totalSessions;
         String lastActive;
+        final AtomicLong version = new AtomicLong(); // Bumped after any change the profile and stats responses show
         
         public User(String username, String displayName) {
             this.username = username;
@@ -42,12 +85,14 @@ public class Main {
         
         public void updateActivity() {
             this.lastActive = new java.util.Date().toString();
+            version.incrementAndGet();
         }
     }
     
     // Enhanced Message class with advanced features
     static class Message {
         String id;
+        long seq; // per-session sequence number, assigned on append
         String content;
         String sender;
         String username;
@@ -59,7 +104,30 @@ public class Main {
         boolean isEdited;
         String editedTimestamp;
         boolean isDeleted;
-        Map<String, Integer> reactions;
+        final Map<String, ReactionSet> reactions = new ConcurrentHashMap<>(); // Emoji -> who reacted with it
+        long postedMillis; // Arrival in this process; restored messages count from their restore
+        
+        // Encoded JSON is reused by every poll until an edit, delete or reaction bumps the revision
+        private static final AtomicIntegerFieldUpdater<Message> REVISION =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "revision");
+        private volatile int revision;
+        private volatile EncodedJson encoded;
+        
+        // One emoji's reactions: each user at most once, with a counter so reads never size the set
+        static final class ReactionSet {
+            final Map<String, Boolean> users = new ConcurrentHashMap<>();
+            final LongAdder count = new LongAdder();
+        }
+        
+        private static final class EncodedJson {
+            final int revision;
+            final byte[] bytes;
+            
+            EncodedJson(int revision, byte[] bytes) {
+                this.revision = revision;
+                this.bytes = bytes;
+            }
+        }
         
         public Message(String content, String sender, String deviceType, String username) {
             this.id = generateMessageId();
@@ -74,7 +142,7 @@ public class Main {
             this.isEdited = false;
             this.editedTimestamp = null;
             this.isDeleted = false;
-            this.reactions = new ConcurrentHashMap<>();
+            this.postedMillis = System.currentTimeMillis();
         }
         
         public Message(String content, String sender, String deviceType, String username, String replyToId, String replyToContent, String replyToUsername) {
@@ -84,826 +152,5434 @@ public class Main {
             this.replyToUsername = replyToUsername;
         }
         
+        // Rebuilds a persisted message with its original id and timestamp
+        Message(String id, String content, String sender, String deviceType, String username, String timestamp) {
+            this.id = id;
+            this.content = content;
+            this.sender = sender;
+            this.deviceType = deviceType;
+            this.username = username;
+            this.timestamp = timestamp;
+            this.postedMillis = System.currentTimeMillis();
+        }
+        
+        // Process start time plus a counter: unique within a run and across restarts, and no randomness
+        private static final long ID_EPOCH = System.currentTimeMillis();
+        private static final AtomicLong ID_COUNTER = new AtomicLong();
+        
         private String generateMessageId() {
-            return "msg_" + System.currentTimeMillis() + "_" + (int)(Math.random() * 1000);
+            return "msg_" + ID_EPOCH + "_" + ID_COUNTER.incrementAndGet();
+        }
+        
+        // UTF-8 JSON of this message; the revision is read before encoding, so a racing mutation only costs a re-encode
+        byte[] toJsonBytes() {
+            int current = revision;
+            EncodedJson cached = encoded;
+            if (cached != null && cached.revision == current) {
+                return cached.bytes;
+            }
+            JsonWriter json = JsonWriter.acquire();
+            ApiHandler.writeMessageJson(json, this);
+            byte[] bytes = json.toByteArray();
+            json.release();
+            encoded = new EncodedJson(current, bytes);
+            return bytes;
+        }
+        
+        // Called after every field change so cached JSON is never served stale
+        private void invalidateJson() {
+            REVISION.incrementAndGet(this);
         }
         
         public void editMessage(String newContent) {
             this.content = newContent;
             this.isEdited = true;
             this.editedTimestamp = new java.util.Date().toString();
+            invalidateJson();
         }
         
         public void deleteMessage() {
             this.isDeleted = true;
             this.content = "[Message deleted]";
+            invalidateJson();
         }
         
-        public void addReaction(String emoji) {
-            reactions.put(emoji, reactions.getOrDefault(emoji, 0) + 1);
+        // Adds or removes one user's reaction; repeating either is a no-op and returns false
+        public boolean setReaction(String emoji, String username, boolean present) {
+            ReactionSet set = present ? reactions.computeIfAbsent(emoji, k -> new ReactionSet()) : reactions.get(emoji);
+            if (set == null) return false;
+            boolean[] changed = new boolean[1];
+            set.users.compute(username, (user, current) -> {
+                if ((current != null) != present) {
+                    if (present) set.count.increment();
+                    else set.count.decrement();
+                    changed[0] = true;
+                }
+                return present ? Boolean.TRUE : null;
+            });
+            if (changed[0]) invalidateJson();
+            return changed[0];
         }
         
-        public void removeReaction(String emoji) {
-            if (reactions.containsKey(emoji)) {
-                int count = reactions.get(emoji) - 1;
-                if (count <= 0) {
-                    reactions.remove(emoji);
-                } else {
-                    reactions.put(emoji, count);
+        public long reactionCount(String emoji) {
+            ReactionSet set = reactions.get(emoji);
+            return set != null ? set.count.sum() : 0;
+        }
+        
+        // Unattributed reactions (anonymous ones, and counts from old logs) are held by numbered stand-ins
+        // that no form field can produce: an add takes the first free one, a remove gives any one back
+        String standIn(String emoji, boolean present) {
+            ReactionSet set = reactions.get(emoji);
+            if (present) {
+                for (int i = 1; ; i++) {
+                    if (set == null || !set.users.containsKey("\u0000" + i)) return "\u0000" + i;
                 }
             }
+            if (set != null) {
+                for (String user : set.users.keySet()) {
+                    if (user.startsWith("\u0000")) return user;
+                }
+            }
+            return null;
+        }
+        
+        // Logs and snapshots written before reactions were per user only carry a count; stand-ins make up the difference
+        void setLegacyReactionCount(String emoji, int count) {
+            long current = reactionCount(emoji);
+            for (int i = 1; current < count; i++) {
+                if (setReaction(emoji, "\u0000" + i, true)) current++;
+            }
+            ReactionSet set = reactions.get(emoji);
+            if (set == null) return;
+            for (String user : set.users.keySet()) {
+                if (current <= count) break;
+                if (user.startsWith("\u0000") && setReaction(emoji, user, false)) current--;
+            }
         }
     }
     
-    // Typing indicator class
-    static class TypingIndicator {
-        String sessionId;
-        String username;
-        long timestamp;
+    // Append-only message log for one session. Messages live in fixed-size segments, so appends never
+    // copy earlier messages; a single writer appends under the log's lock and publishes through the
+    // volatile size, so readers see a consistent prefix without taking any lock.
+    static class SessionLog {
+        static final int SEGMENT_SHIFT = 10;
+        static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 1024 messages per segment
+        static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
         
-        public TypingIndicator(String sessionId, String username) {
-            this.sessionId = sessionId;
-            this.username = username;
-            this.timestamp = System.currentTimeMillis();
+        private static final AtomicLong STORE_IDS = new AtomicLong();
+        
+        private volatile Message[][] segments = new Message[4][]; // A null entry below the newest segment is cold, on disk
+        private volatile long size; // Sequence number of the newest message (the high-water mark)
+        private final Map<String, Long> idIndex = new ConcurrentHashMap<>(); // Message id -> seq
+        private final Map<Integer, Long> lookedUp = new ConcurrentHashMap<>(); // Segment -> last findById, which precedes a mutation
+        final long storeId = STORE_IDS.incrementAndGet(); // Names this log's cold segment files
+        private final AtomicLong version = new AtomicLong(); // Bumped on append, edit, delete and reaction; served as the ETag
+        final SearchIndex searchIndex = new SearchIndex();
+        
+        // Assigns the next sequence number; callers that also publish events hold the log's lock around both
+        public synchronized long append(Message msg) {
+            long seq = size + 1;
+            segments = place(segments, msg, seq);
+            size = seq; // Publishes the message to readers
+            idIndex.put(msg.id, seq);
+            searchIndex.add(msg);
+            version.incrementAndGet();
+            return seq;
         }
         
-        public boolean isExpired() {
-            return System.currentTimeMillis() - timestamp > 3000; // 3 seconds
+        // Appends with consecutive sequence numbers; readers see none of the batch until they see all of it
+        public synchronized long appendAll(List<Message> batch) {
+            Message[][] directory = segments;
+            long seq = size;
+            for (Message msg : batch) {
+                directory = place(directory, msg, ++seq);
+            }
+            segments = directory;
+            size = seq;
+            for (Message msg : batch) {
+                idIndex.put(msg.id, msg.seq);
+                searchIndex.add(msg);
+            }
+            version.incrementAndGet();
+            return seq;
+        }
+        
+        private static Message[][] place(Message[][] directory, Message msg, long seq) {
+            int index = (int) (seq - 1);
+            int segment = index >>> SEGMENT_SHIFT;
+            if (segment == directory.length) {
+                // Only the directory of segment references is copied, never the messages
+                directory = Arrays.copyOf(directory, directory.length * 2);
+            }
+            if (directory[segment] == null) {
+                directory[segment] = new Message[SEGMENT_SIZE];
+            }
+            directory[segment][index & SEGMENT_MASK] = msg;
+            msg.seq = seq;
+            return directory;
+        }
+        
+        public void edit(Message msg, String newContent) {
+            synchronized (searchIndex) {
+                searchIndex.remove(msg);
+                msg.editMessage(newContent);
+                searchIndex.add(msg);
+            }
+            version.incrementAndGet();
+        }
+        
+        public void delete(Message msg) {
+            synchronized (searchIndex) {
+                searchIndex.remove(msg);
+                msg.deleteMessage();
+            }
+            version.incrementAndGet();
+        }
+        
+        // For changes made to a message directly, such as reactions
+        public void touch() {
+            version.incrementAndGet();
+        }
+        
+        public long version() {
+            return version.get();
+        }
+        
+        public long size() {
+            return size;
+        }
+        
+        public Message get(long seq) {
+            if (seq < 1 || seq > size) return null;
+            int index = (int) (seq - 1);
+            return segment(index >>> SEGMENT_SHIFT)[index & SEGMENT_MASK];
+        }
+        
+        // Callers mutate what this returns, so a cold message is promoted back into memory first
+        public Message findById(String messageId) {
+            Long seq = idIndex.get(messageId);
+            if (seq == null) return null;
+            int index = (int) (seq - 1);
+            int segment = index >>> SEGMENT_SHIFT;
+            lookedUp.put(segment, System.currentTimeMillis()); // Before the read below; see spill
+            Message[] messages = segments[segment];
+            if (messages == null) {
+                messages = promote(segment);
+            }
+            return messages[index & SEGMENT_MASK];
+        }
+        
+        // Messages with since < seq <= since + limit, as of the current high-water mark
+        public List<Message> range(long since, int limit) {
+            long end = size;
+            long from = Math.min(Math.max(since, 0), end);
+            long to = Math.min(end, from + limit);
+            
+            List<Message> result = new ArrayList<>((int) (to - from));
+            Message[] messages = null;
+            int current = -1;
+            for (long seq = from + 1; seq <= to; seq++) {
+                int index = (int) (seq - 1);
+                if (index >>> SEGMENT_SHIFT != current) {
+                    current = index >>> SEGMENT_SHIFT;
+                    messages = segment(current);
+                }
+                result.add(messages[index & SEGMENT_MASK]);
+            }
+            return result;
+        }
+        
+        // Read-only view of a segment: in memory, or paged in through the cold-segment cache
+        private Message[] segment(int segment) {
+            Message[] messages = segments[segment];
+            return messages != null ? messages : ColdStore.read(this, segment);
+        }
+        
+        private synchronized Message[] promote(int segment) {
+            Message[][] directory = segments;
+            if (directory[segment] == null) {
+                directory[segment] = ColdStore.take(this, segment);
+                segments = directory;
+            }
+            return directory[segment];
+        }
+        
+        // Writes full segments outside the hot window to disk and drops them from the heap
+        int spill(long hotMessages, long hotSinceMillis, long quietSinceMillis) throws IOException {
+            long coldEnd = size - hotMessages;
+            int coldSegments = (int) (Math.max(coldEnd, 0) >>> SEGMENT_SHIFT);
+            int spilled = 0;
+            for (int segment = 0; segment < coldSegments; segment++) {
+                Message[] messages = segments[segment];
+                if (messages == null) continue;
+                if (messages[SEGMENT_MASK].postedMillis >= hotSinceMillis) break; // Later segments are newer still
+                Long lastLookup = lookedUp.get(segment);
+                if (lastLookup != null) {
+                    if (lastLookup >= quietSinceMillis) continue; // A caller may still be mutating it
+                    lookedUp.remove(segment, lastLookup);
+                }
+                
+                ColdStore.write(this, segment, messages);
+                synchronized (this) {
+                    Message[][] directory = segments;
+                    directory[segment] = null;
+                    segments = directory;
+                    // findById records its lookup before reading the segment, so either it saw the null or we see it here
+                    Long raced = lookedUp.get(segment);
+                    if (raced != null && raced >= quietSinceMillis) {
+                        directory[segment] = messages;
+                        segments = directory;
+                        continue;
+                    }
+                }
+                ColdStore.invalidate(this, segment);
+                spilled++;
+            }
+            return spilled;
         }
     }
     
-    // Message search utility
-    static class MessageSearch {
-        public static List<Message> searchMessages(String sessionId, String query) {
-            List<Message> allMessages = sessions.get(sessionId);
-            if (allMessages == null || query == null || query.trim().isEmpty()) {
-                return new ArrayList<>();
+    // Per-session inverted index: case-folded word tokens of content and username -> ascending seqs.
+    // Kept up to date on post, edit and delete; queries match each query word as a token prefix and
+    // walk postings newest-first, so the cost depends on the page size rather than the history length.
+    static class SearchIndex {
+        static final int DEFAULT_LIMIT = 20;
+        static final int MAX_LIMIT = 100;
+        
+        private final ConcurrentSkipListMap<String, Postings> terms = new ConcurrentSkipListMap<>();
+        private volatile boolean built = true; // False for a restored session until its first search
+        
+        // Ascending seqs for one term. Appends write in place past the published size; the rare
+        // out-of-order insert or removal publishes a fresh array. Readers re-check every hit.
+        static class Postings {
+            volatile int[] seqs = new int[4];
+            volatile int size;
+            
+            void add(int seq) {
+                int[] current = seqs;
+                int count = size;
+                if (count > 0 && current[count - 1] >= seq) {
+                    int at = Arrays.binarySearch(current, 0, count, seq);
+                    if (at >= 0) return; // Already present
+                    int insertAt = -at - 1;
+                    int[] copy = new int[Math.max(current.length, count + 1)];
+                    System.arraycopy(current, 0, copy, 0, insertAt);
+                    copy[insertAt] = seq;
+                    System.arraycopy(current, insertAt, copy, insertAt + 1, count - insertAt);
+                    seqs = copy;
+                    size = count + 1;
+                    return;
+                }
+                if (count == current.length) {
+                    current = Arrays.copyOf(current, count * 2);
+                }
+                current[count] = seq;
+                seqs = current;
+                size = count + 1;
+            }
+            
+            void remove(int seq) {
+                int[] current = seqs;
+                int count = size;
+                int at = Arrays.binarySearch(current, 0, count, seq);
+                if (at < 0) return;
+                int[] copy = new int[current.length];
+                System.arraycopy(current, 0, copy, 0, at);
+                System.arraycopy(current, at + 1, copy, at, count - at - 1);
+                size = count - 1;
+                seqs = copy;
+            }
+        }
+        
+        // Walks one term's postings from newest to oldest
+        static class Cursor {
+            final int[] seqs;
+            int index;
+            
+            Cursor(Postings postings, long before) {
+                int count = postings.size;
+                seqs = postings.seqs;
+                int end = Math.min(count, seqs.length);
+                int at = Arrays.binarySearch(seqs, 0, end, (int) Math.min(before, Integer.MAX_VALUE));
+                index = (at >= 0 ? at : -at - 1) - 1; // Last seq strictly below 'before'
             }
             
+            int current() {
+                return seqs[index];
+            }
+        }
+        
+        // Restored sessions skip indexing at startup; most are never searched before they are appended to again
+        void deferUntilSearched() {
+            built = false;
+        }
+        
+        // Appends racing the build are safe: they either land before it reads the log size or see it built
+        synchronized void ensureBuilt(SessionLog log) {
+            if (built) return;
+            built = true;
+            long size = log.size();
+            for (long seq = 1; seq <= size; seq++) {
+                add(log.get(seq));
+            }
+        }
+        
+        public synchronized void add(Message msg) {
+            if (!built || msg.isDeleted) return;
+            for (String token : tokensOf(msg)) {
+                terms.computeIfAbsent(token, k -> new Postings()).add((int) msg.seq);
+            }
+        }
+        
+        public synchronized void remove(Message msg) {
+            for (String token : tokensOf(msg)) {
+                Postings postings = terms.get(token);
+                if (postings == null) continue;
+                postings.remove((int) msg.seq);
+                if (postings.size == 0) terms.remove(token);
+            }
+        }
+        
+        // Newest-first page of matches with seq < before; every query word must prefix some token
+        public List<Message> search(SessionLog log, String query, long before, int limit) {
             List<Message> results = new ArrayList<>();
-            String lowerQuery = query.toLowerCase().trim();
+            Set<String> queryTokens = tokenize(query);
+            if (queryTokens.isEmpty() || limit <= 0) return results;
             
-            for (Message message : allMessages) {
-                if (message.isDeleted) continue;
-                
-                if (message.content.toLowerCase().contains(lowerQuery) ||
-                    message.username.toLowerCase().contains(lowerQuery)) {
-                    results.add(message);
+            // Drive the walk from the most selective query word
+            List<Postings> driver = null;
+            long driverSize = Long.MAX_VALUE;
+            for (String token : queryTokens) {
+                List<Postings> expansion = new ArrayList<>(terms.subMap(token, true, token + Character.MAX_VALUE, true).values());
+                long total = 0;
+                for (Postings postings : expansion) total += postings.size;
+                if (total == 0) return results;
+                if (total < driverSize) {
+                    driver = expansion;
+                    driverSize = total;
                 }
             }
             
+            PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> Integer.compare(b.current(), a.current()));
+            for (Postings postings : driver) {
+                Cursor cursor = new Cursor(postings, before);
+                if (cursor.index >= 0) cursors.add(cursor);
+            }
+            
+            int lastSeq = -1;
+            while (!cursors.isEmpty() && results.size() < limit) {
+                Cursor cursor = cursors.poll();
+                int seq = cursor.current();
+                if (--cursor.index >= 0) cursors.add(cursor);
+                if (seq == lastSeq) continue; // Same message reached through another prefix expansion
+                lastSeq = seq;
+                
+                Message msg = log.get(seq);
+                if (msg != null && !msg.isDeleted && matches(msg, queryTokens)) {
+                    results.add(msg);
+                }
+            }
             return results;
         }
         
-        public static Message findMessageById(String sessionId, String messageId) {
-            List<Message> messages = sessions.get(sessionId);
-            if (messages == null) return null;
-            
-            for (Message message : messages) {
-                if (message.id.equals(messageId)) {
-                    return message;
+        private static boolean matches(Message msg, Set<String> queryTokens) {
+            Set<String> messageTokens = tokensOf(msg);
+            for (String queryToken : queryTokens) {
+                boolean found = false;
+                for (String token : messageTokens) {
+                    if (token.startsWith(queryToken)) {
+                        found = true;
+                        break;
+                    }
                 }
+                if (!found) return false;
             }
-            return null;
+            return true;
         }
-    }
-    
-    // UserProfile class for extended profile information
-    static class UserProfile {
-        String username;
-        String bio;
-        String profilePicture;
-        String location;
-        String website;
-        String phoneNumber;
         
-        public UserProfile(String username) {
-            this.username = username;
-            this.bio = "";
-            this.profilePicture = "";
-            this.location = "";
-            this.website = "";
-            this.phoneNumber = "";
+        private static Set<String> tokensOf(Message msg) {
+            Set<String> tokens = tokenize(msg.content);
+            tokens.addAll(tokenize(msg.username));
+            return tokens;
+        }
+        
+        static Set<String> tokenize(String text) {
+            Set<String> tokens = new LinkedHashSet<>();
+            if (text == null) return tokens;
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (wordChar && start < 0) {
+                    start = i;
+                } else if (!wordChar && start >= 0) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                    start = -1;
+                }
+            }
+            return tokens;
         }
     }
     
-    // UserSettings class for user preferences
-    static class UserSettings {
+    // Typing indicator class
+    static class TypingIndicator {
+        String sessionId;
         String username;
-        boolean notifications;
-        boolean soundEnabled;
-        String theme;
-        String language;
-        boolean compactMode;
-        boolean readReceipts;
-        int sessionTimeout;
-        // Additional functional settings
-        boolean autoRefresh;
-        int refreshInterval; // in milliseconds
-        boolean showTimestamps;
-        boolean showTypingIndicators;
-        int maxMessagesDisplay;
+        long timestamp;
         
-        public UserSettings(String username) {
+        public TypingIndicator(String sessionId, String username) {
+            this.sessionId = sessionId;
             this.username = username;
-            this.notifications = true;
-            this.soundEnabled = true;
-            this.theme = "auto";
-            this.language = "english";
-            this.compactMode = false;
-            this.readReceipts = true;
-            this.sessionTimeout = 60;
-            // Initialize new functional settings
-            this.autoRefresh = true;
-            this.refreshInterval = 1000; // 1 second
-            this.showTimestamps = true;
-            this.showTypingIndicators = true;
-            this.maxMessagesDisplay = 100;
+            this.timestamp = System.currentTimeMillis();
+        }
+        
+        public boolean isExpired() {
+            return System.currentTimeMillis() - timestamp > 3000; // 3 seconds
         }
     }
     
-    public static void main(String[] args) throws IOException {
-        // Check if ngrok URL is provided as argument
-        if (args.length > 0) {
-            baseUrl = args[0];
-            System.out.println("🌐 Using ngrok URL: " + baseUrl);
+    // Message search utility
+    static class MessageSearch {
+        // Newest-first page of matches older than 'before' (a seq; Long.MAX_VALUE for the first page)
+        public static List<Message> searchMessages(String sessionId, String query, long before, int limit) {
+            SessionLog log = sessions.get(sessionId);
+            if (log == null || query == null || query.trim().isEmpty()) {
+                return new ArrayList<>();
+            }
+            log.searchIndex.ensureBuilt(log);
+            return log.searchIndex.search(log, query, before, limit);
         }
         
-        HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", 8082), 0);
-        
-        server.createContext("/", new MainHandler());
-        server.createContext("/qr/", new QRHandler());
-        server.createContext("/api/", new ApiHandler());
-        server.setExecutor(null);
-        server.start();
-        
-        System.out.println("http://localhost:8082");
-        System.out.println("http://10.0.0.95:8082");
-        if (args.length > 0) {
-            System.out.println(baseUrl);
+        public static Message findMessageById(String sessionId, String messageId) {
+            SessionLog log = sessions.get(sessionId);
+            if (log == null || messageId == null) return null;
+            return log.findById(messageId);
         }
     }
     
-    // Enhanced API Handler with comprehensive backend functionality
-    static class ApiHandler implements HttpHandler {
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            String method = exchange.getRequestMethod();
+    // Append-only write-ahead log of every state change; fsyncs are batched by one flusher thread (group commit).
+    // Files are numbered generations (wal-N.log); a snapshot of generation N makes every earlier file obsolete.
+    static class WriteAheadLog {
+        static final byte USER = 1;
+        static final byte SESSION = 2;
+        static final byte MESSAGE = 3;
+        static final byte EDIT = 4;
+        static final byte DELETE = 5;
+        static final byte REACTION = 6;
+        static final byte PROFILE = 7;
+        static final byte SETTINGS = 8;
+        static final byte USER_STATS = 9; // Snapshots only; the message count in it is rebuilt from the session blocks
+        static final byte REACTION_USER = 10;
+        static final byte MESSAGES = 11; // A batch post, so a torn tail loses all of it or none
+        
+        private static final Pattern FILE_NAME = Pattern.compile("wal-(\\d+)\\.log");
+        private static final int HEADER_BYTES = 8; // Payload length, then CRC32 of the payload
+        
+        private static final Object lock = new Object();
+        private static File dataDir;
+        private static FileChannel channel; // null while persistence is disabled
+        private static long generation;
+        private static long commitNanos;
+        private static int commitBytes;
+        private static boolean syncCommits;
+        private static byte[] pending = new byte[64 * 1024];
+        private static byte[] flushing = new byte[64 * 1024];
+        private static int pendingCount;
+        private static long firstPendingNanos;
+        private static boolean writing; // A batch is between the lock and its fsync
+        private static long appendedBytes; // Logical positions since open; durable trails appended
+        private static long durableBytes;
+        private static long rotatedAtBytes;
+        private static volatile IOException failure; // Set once by the flusher; every later write is refused
+        
+        // Thrown by writers once the log has failed, so callers refuse the change instead of keeping it in memory only
+        static class FailedException extends UncheckedIOException {
+            private static final long serialVersionUID = 1L;
             
-            if (path.startsWith("/api/messages/")) {
-                handleMessages(exchange, path, method);
-            } else if (path.startsWith("/api/reactions/")) {
-                handleReactions(exchange, path, method);
-            } else if (path.startsWith("/api/typing/")) {
-                handleTyping(exchange, path, method);
-            } else if (path.startsWith("/api/search/")) {
-                handleSearch(exchange, path, method);
-            } else if (path.startsWith("/api/edit/")) {
-                handleMessageEdit(exchange, path, method);
-            } else if (path.startsWith("/api/delete/")) {
-                handleMessageDelete(exchange, path, method);
-            } else if (path.startsWith("/api/profile/")) {
-                handleProfile(exchange, path, method);
-            } else if (path.startsWith("/api/settings/")) {
-                handleSettings(exchange, path, method);
-            } else if (path.startsWith("/api/user/")) {
-                handleUser(exchange, path, method);
-            } else {
-                sendResponse(exchange, "{\"error\":\"API endpoint not found\"}", 404);
+            FailedException(IOException cause) {
+                super("Write-ahead log failed", cause);
             }
         }
         
-        private void handleMessages(HttpExchange exchange, String path, String method) throws IOException {
-            String sessionId = path.substring(14); // Remove "/api/messages/"
+        // Loads the newest snapshot, replays the log generations after it, then opens the last one for appending
+        static void open(File dir, long commitMicros, int commitBytesThreshold, boolean sync) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create data directory " + dir);
+            }
+            long started = System.nanoTime();
+            long snapshotGeneration = SnapshotStore.loadLatest(dir);
             
-            if ("GET".equals(method)) {
-                // Get messages for session
-                List<Message> messages = sessions.get(sessionId);
-                if (messages == null) {
-                    messages = new ArrayList<>();
-                    sessions.put(sessionId, messages);
+            long records = 0;
+            long current = snapshotGeneration;
+            FileChannel fileChannel = null;
+            for (long walGeneration : generations(dir)) {
+                if (walGeneration < snapshotGeneration) continue;
+                if (fileChannel != null) fileChannel.close();
+                fileChannel = FileChannel.open(fileFor(dir, walGeneration).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long[] replayed = replay(fileChannel);
+                records += replayed[1];
+                current = walGeneration;
+                if (replayed[0] < fileChannel.size()) {
+                    // A torn write from a crash; drop it so new records follow the last good one
+                    System.out.println("Write-ahead log: discarding " + (fileChannel.size() - replayed[0]) + " bytes of incomplete tail");
+                    fileChannel.truncate(replayed[0]);
                 }
-                
-                StringBuilder json = new StringBuilder("[");
-                for (int i = 0; i < messages.size(); i++) {
-                    Message msg = messages.get(i);
-                    if (msg.isDeleted) continue; // Skip deleted messages in list view
-                    
-                    json.append("{");
-                    json.append("\"id\":\"").append(msg.id).append("\",");
-                    json.append("\"content\":\"").append(msg.content.replace("\"", "\\\"")).append("\",");
-                    json.append("\"sender\":\"").append(msg.sender).append("\",");
-                    json.append("\"username\":\"").append(msg.username).append("\",");
-                    json.append("\"deviceType\":\"").append(msg.deviceType).append("\",");
-                    json.append("\"timestamp\":\"").append(msg.timestamp).append("\",");
-                    json.append("\"isEdited\":").append(msg.isEdited).append(",");
-                    json.append("\"isDeleted\":").append(msg.isDeleted).append(",");
-                    
-                    // Reply information
-                    if (msg.replyToId != null) {
-                        json.append("\"replyToId\":\"").append(msg.replyToId).append("\",");
-                        json.append("\"replyToContent\":\"").append(msg.replyToContent != null ? msg.replyToContent.replace("\"", "\\\"") : "").append("\",");
-                        json.append("\"replyToUsername\":\"").append(msg.replyToUsername != null ? msg.replyToUsername : "").append("\",");
-                    } else {
-                        json.append("\"replyToId\":null,");
-                        json.append("\"replyToContent\":null,");
-                        json.append("\"replyToUsername\":null,");
-                    }
-                    
-                    // Reactions
-                    json.append("\"reactions\":{");
-                    boolean first = true;
-                    for (Map.Entry<String, Integer> reaction : msg.reactions.entrySet()) {
-                        if (!first) json.append(",");
-                        json.append("\"").append(reaction.getKey()).append("\":").append(reaction.getValue());
-                        first = false;
+                fileChannel.position(replayed[0]);
+            }
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(fileFor(dir, current).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            
+            long messages = 0;
+            for (SessionLog log : sessions.values()) messages += log.size();
+            System.out.println("Recovered " + sessions.size() + " sessions and " + messages + " messages (snapshot "
+                + snapshotGeneration + " + " + records + " log records) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+            
+            dataDir = dir;
+            generation = current;
+            commitNanos = TimeUnit.MICROSECONDS.toNanos(commitMicros);
+            commitBytes = commitBytesThreshold;
+            syncCommits = sync;
+            channel = fileChannel;
+            SnapshotStore.deleteObsolete(dir, snapshotGeneration);
+            
+            Thread flusher = daemonThreads("alpha-wal").newThread(WriteAheadLog::flushLoop);
+            flusher.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(WriteAheadLog::flush));
+        }
+        
+        static boolean isEnabled() {
+            return channel != null;
+        }
+        
+        static File dataDir() {
+            return dataDir;
+        }
+        
+        static long bytesSinceRotation() {
+            synchronized (lock) {
+                return appendedBytes - rotatedAtBytes;
+            }
+        }
+        
+        // Starts a new generation once everything before it is durable; returns the new generation number
+        static long rotate() throws IOException {
+            synchronized (lock) {
+                while ((pendingCount > 0 || writing) && failure == null) {
+                    lock.notifyAll(); // Wake the flusher rather than letting it sit out the commit interval
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while rotating the write-ahead log");
                     }
-                    json.append("}");
-                    
-                    json.append("}");
-                    if (i < messages.size() - 1) json.append(",");
                 }
-                json.append("]");
-                sendResponse(exchange, json.toString(), 200);
-                
-            } else if ("POST".equals(method)) {
-                // Send message
-                String body = readRequestBody(exchange);
-                String content = extractParam(body, "content");
-                String senderDevice = extractParam(body, "senderDevice");
+                if (failure != null) throw failure;
                 
-                if (content != null && senderDevice != null) {
-                    List<Message> messages = sessions.get(sessionId);
-                    if (messages == null) {
-                        messages = new ArrayList<>();
-                        sessions.put(sessionId, messages);
-                    }
-                    
-                    String msgUsername = extractParam(body, "username");
-                    String replyToId = extractParam(body, "replyToId");
-                    
-                    Message msg;
-                    if (replyToId != null && !replyToId.isEmpty()) {
-                        // This is a reply message
-                        Message replyToMessage = MessageSearch.findMessageById(sessionId, replyToId);
-                        if (replyToMessage != null) {
-                            msg = new Message(content, senderDevice, senderDevice, msgUsername, 
-                                            replyToId, replyToMessage.content, replyToMessage.username);
-                        } else {
-                            msg = new Message(content, senderDevice, senderDevice, msgUsername);
-                        }
-                    } else {
-                        msg = new Message(content, senderDevice, senderDevice, msgUsername);
-                    }
-                    
-                    messages.add(msg);
-                    
-                    // Update user activity if we can identify the user
-                    if (msgUsername != null && users.containsKey(msgUsername)) {
-                        users.get(msgUsername).updateActivity();
-                        users.get(msgUsername).totalMessages++;
-                    }
-                    
-                    sendResponse(exchange, "{\"success\":true}", 200);
-                } else {
-                    sendResponse(exchange, "{\"error\":\"Missing content or senderDevice\"}", 400);
-                }
+                FileChannel next = FileChannel.open(fileFor(dataDir, generation + 1).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileChannel previous = channel;
+                channel = next;
+                generation++;
+                rotatedAtBytes = appendedBytes;
+                previous.close();
+                return generation;
             }
         }
         
-        private void handleProfile(HttpExchange exchange, String path, String method) throws IOException {
-            String username = path.substring(13); // Remove "/api/profile/"
+        static void logUser(User user) {
+            append(userRecord(user));
+        }
+        
+        static void logSession(String sessionId, String username) {
+            append(new Record(SESSION).string(sessionId).string(username));
+        }
+        
+        static void logMessage(String sessionId, Message msg) {
+            append(messageFields(new Record(MESSAGE).string(sessionId), msg));
+        }
+        
+        static void logMessages(String sessionId, List<Message> batch) {
+            Record record = new Record(MESSAGES).string(sessionId).integer(batch.size());
+            for (Message msg : batch) {
+                messageFields(record, msg);
+            }
+            append(record);
+        }
+        
+        private static Record messageFields(Record record, Message msg) {
+            return record.int64(msg.seq).string(msg.id)
+                .string(msg.content).string(msg.sender).string(msg.deviceType).string(msg.username).string(msg.timestamp)
+                .string(msg.replyToId).string(msg.replyToContent).string(msg.replyToUsername);
+        }
+        
+        static void logEdit(String sessionId, Message msg) {
+            append(new Record(EDIT).string(sessionId).string(msg.id).string(msg.content).string(msg.editedTimestamp));
+        }
+        
+        static void logDelete(String sessionId, Message msg) {
+            append(new Record(DELETE).string(sessionId).string(msg.id));
+        }
+        
+        // Records whether the user now has the reaction rather than the toggle, so replaying over a snapshot is idempotent
+        static void logReaction(String sessionId, Message msg, String emoji, String username, boolean present) {
+            append(new Record(REACTION_USER).string(sessionId).string(msg.id).string(emoji).string(username).bool(present));
+        }
+        
+        // Profile and settings records carry the whole object, so replay is simply last-writer-wins
+        static void logProfile(User user, UserProfile profile) {
+            append(profileRecord(user, profile));
+        }
+        
+        static void logSettings(UserSettings userSettings) {
+            append(settingsRecord(userSettings));
+        }
+        
+        static Record userRecord(User user) {
+            return new Record(USER).string(user.username).string(user.displayName).string(user.createdAt);
+        }
+        
+        static Record userStatsRecord(User user) {
+            return new Record(USER_STATS).string(user.username).integer(user.totalMessages)
+                .integer(user.totalSessions).string(user.lastActive);
+        }
+        
+        static Record profileRecord(User user, UserProfile profile) {
+            return new Record(PROFILE).string(profile.username)
+                .string(user != null ? user.displayName : null).string(user != null ? user.email : null)
+                .string(profile.bio).string(profile.profilePicture).string(profile.location)
+                .string(profile.website).string(profile.phoneNumber);
+        }
+        
+        static Record settingsRecord(UserSettings userSettings) {
+            return new Record(SETTINGS).string(userSettings.username)
+                .bool(userSettings.notifications).bool(userSettings.soundEnabled)
+                .string(userSettings.theme).string(userSettings.language)
+                .bool(userSettings.compactMode).bool(userSettings.readReceipts).integer(userSettings.sessionTimeout)
+                .bool(userSettings.autoRefresh).integer(userSettings.refreshInterval)
+                .bool(userSettings.showTimestamps).bool(userSettings.showTypingIndicators).integer(userSettings.maxMessagesDisplay);
+        }
+        
+        // Call before mutating state that will be logged; a no-op while persistence is disabled
+        static void checkWritable() {
+            IOException failed = failure;
+            if (failed != null) throw new FailedException(failed);
+        }
+        
+        private static void append(Record record) {
+            if (channel == null) return;
+            byte[] payload = record.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            int frameLength = HEADER_BYTES + payload.length;
             
-            if ("GET".equals(method)) {
-                User user = users.get(username);
-                UserProfile profile = profiles.get(username);
-                
-                if (user == null) {
-                    sendResponse(exchange, "{\"error\":\"User not found\"}", 404);
-                    return;
+            synchronized (lock) {
+                if (failure != null) throw new FailedException(failure);
+                if (pendingCount + frameLength > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + frameLength));
                 }
-                
-                if (profile == null) {
-                    profile = new UserProfile(username);
-                    profiles.put(username, profile);
+                if (pendingCount == 0) {
+                    firstPendingNanos = System.nanoTime();
+                }
+                putInt(pending, pendingCount, payload.length);
+                putInt(pending, pendingCount + 4, (int) crc.getValue());
+                System.arraycopy(payload, 0, pending, pendingCount + HEADER_BYTES, payload.length);
+                pendingCount += frameLength;
+                appendedBytes += frameLength;
+                // The flusher sleeps until the first record of a batch, then again once the batch is big enough
+                if (pendingCount == frameLength || pendingCount >= commitBytes) {
+                    lock.notifyAll();
+                }
+            }
+        }
+        
+        // Blocks until everything appended so far is on disk; a no-op when commits are asynchronous
+        static void awaitDurable() {
+            if (syncCommits) flush();
+        }
+        
+        // Blocks until everything appended so far is on disk, regardless of the commit mode
+        static void flush() {
+            if (channel == null) return;
+            synchronized (lock) {
+                long target = appendedBytes;
+                while (durableBytes < target && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (failure != null) {
+                    throw new FailedException(failure);
+                }
+            }
+        }
+        
+        private static void flushLoop() {
+            while (true) {
+                byte[] batch;
+                int batchLength;
+                long batchEnd;
+                FileChannel target;
+                synchronized (lock) {
+                    try {
+                        while (pendingCount == 0) {
+                            lock.wait();
+                        }
+                        // Let the batch fill for up to the commit interval, unless it is already large
+                        long remaining;
+                        while (pendingCount < commitBytes
+                            && (remaining = commitNanos - (System.nanoTime() - firstPendingNanos)) > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    batch = pending;
+                    batchLength = pendingCount;
+                    batchEnd = appendedBytes;
+                    target = channel;
+                    pending = flushing;
+                    pendingCount = 0;
+                    flushing = batch;
+                    writing = true;
                 }
                 
-                StringBuilder json = new StringBuilder("{");
-                json.append("\"username\":\"").append(user.username).append("\",");
-                json.append("\"displayName\":\"").append(user.displayName).append("\",");
-                json.append("\"email\":\"").append(user.email != null ? user.email : "").append("\",");
-                json.append("\"bio\":\"").append(profile.bio).append("\",");
-                json.append("\"profilePicture\":\"").append(profile.profilePicture).append("\",");
-                json.append("\"location\":\"").append(profile.location).append("\",");
-                json.append("\"website\":\"").append(profile.website).append("\",");
-                json.append("\"phoneNumber\":\"").append(profile.phoneNumber).append("\",");
-                json.append("\"createdAt\":\"").append(user.createdAt).append("\",");
-                json.append("\"lastActive\":\"").append(user.lastActive).append("\",");
-                json.append("\"totalMessages\":").append(user.totalMessages).append(",");
-                json.append("\"totalSessions\":").append(user.totalSessions);
-                json.append("}");
-                
-                sendResponse(exchange, json.toString(), 200);
-                
-            } else if ("POST".equals(method)) {
-                String body = readRequestBody(exchange);
-                User user = users.get(username);
-                UserProfile profile = profiles.get(username);
-                
-                if (user == null) {
-                    sendResponse(exchange, "{\"error\":\"User not found\"}", 404);
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch, 0, batchLength);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    target.force(false);
+                } catch (IOException e) {
+                    System.err.println("Write-ahead log write failed, refusing further writes: " + e.getMessage());
+                    synchronized (lock) {
+                        failure = e;
+                        pendingCount = 0; // Never written; their writers are told through FailedException
+                        writing = false;
+                        lock.notifyAll();
+                    }
                     return;
                 }
                 
-                if (profile == null) {
-                    profile = new UserProfile(username);
-                    profiles.put(username, profile);
+                synchronized (lock) {
+                    durableBytes = batchEnd;
+                    writing = false;
+                    lock.notifyAll();
                 }
+            }
+        }
+        
+        // Returns {end of the last intact record, records replayed}
+        private static long[] replay(FileChannel fileChannel) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fileChannel), 64 * 1024));
+            long fileSize = fileChannel.size();
+            long position = 0;
+            long records = 0;
+            CRC32 crc = new CRC32();
+            while (position + HEADER_BYTES <= fileSize) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 1 || position + HEADER_BYTES + length > fileSize) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
                 
-                // Update profile fields
-                String displayName = extractParam(body, "displayName");
-                if (displayName != null) user.displayName = displayName;
-                
-                String email = extractParam(body, "email");
-                if (email != null) user.email = email;
-                
-                String bio = extractParam(body, "bio");
-                if (bio != null) profile.bio = bio;
-                
-                String profilePicture = extractParam(body, "profilePicture");
-                if (profilePicture != null) profile.profilePicture = profilePicture;
-                
-                String location = extractParam(body, "location");
-                if (location != null) profile.location = location;
-                
-                String website = extractParam(body, "website");
-                if (website != null) profile.website = website;
-                
-                String phoneNumber = extractParam(body, "phoneNumber");
-                if (phoneNumber != null) profile.phoneNumber = phoneNumber;
-                
-                user.updateActivity();
-                sendResponse(exchange, "{\"success\":true,\"message\":\"Profile updated successfully\"}", 200);
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                position += HEADER_BYTES + length;
+                records++;
             }
+            return new long[] { position, records };
         }
         
-        private void handleSettings(HttpExchange exchange, String path, String method) throws IOException {
-            String username = path.substring(13); // Remove "/api/settings/"
+        // Every record sets absolute state, so the log tail may safely overlap what a snapshot already holds
+        static void apply(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == USER) {
+                String username = readString(in);
+                String displayName = readString(in);
+                String createdAt = readString(in);
+                if (!users.containsKey(username)) {
+                    User user = new User(username, displayName);
+                    user.createdAt = createdAt;
+                    users.put(username, user);
+                }
+                profiles.putIfAbsent(username, new UserProfile(username));
+                settings.putIfAbsent(username, new UserSettings(username));
+            } else if (type == USER_STATS) {
+                User user = users.get(readString(in));
+                in.readInt(); // totalMessages: captured before the session blocks, so it can miss messages they hold
+                int totalSessions = in.readInt();
+                String lastActive = readString(in);
+                if (user != null) {
+                    user.totalSessions = totalSessions;
+                    user.lastActive = lastActive;
+                }
+            } else if (type == SESSION) {
+                String sessionId = readString(in);
+                User user = users.get(readString(in));
+                if (sessions.putIfAbsent(sessionId, new SessionLog()) == null && user != null) {
+                    user.totalSessions++;
+                }
+            } else if (type == MESSAGE) {
+                SessionLog log = sessions.computeIfAbsent(readString(in), k -> new SessionLog());
+                long seq = in.readLong();
+                Message msg = readMessage(in);
+                if (seq > log.size()) { // Otherwise the snapshot already has it
+                    if ((log.append(msg) & SessionLog.SEGMENT_MASK) == 0) ColdStore.spillRestored(log);
+                    User user = users.get(msg.username);
+                    if (user != null) user.totalMessages++;
+                }
+            } else if (type == MESSAGES) {
+                SessionLog log = sessions.computeIfAbsent(readString(in), k -> new SessionLog());
+                int count = in.readInt();
+                List<Message> batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long seq = in.readLong();
+                    Message msg = readMessage(in);
+                    if (seq > log.size()) batch.add(msg);
+                }
+                long before = log.size();
+                if ((log.appendAll(batch) >>> SessionLog.SEGMENT_SHIFT) != (before >>> SessionLog.SEGMENT_SHIFT)) {
+                    ColdStore.spillRestored(log);
+                }
+                for (Message msg : batch) {
+                    User user = users.get(msg.username);
+                    if (user != null) user.totalMessages++;
+                }
+            } else if (type == EDIT) {
+                SessionLog log = sessions.get(readString(in));
+                Message msg = log != null ? log.findById(readString(in)) : null;
+                String content = readString(in);
+                String editedTimestamp = readString(in);
+                if (msg != null) {
+                    log.edit(msg, content);
+                    msg.editedTimestamp = editedTimestamp;
+                }
+            } else if (type == DELETE) {
+                SessionLog log = sessions.get(readString(in));
+                Message msg = log != null ? log.findById(readString(in)) : null;
+                if (msg != null) log.delete(msg);
+            } else if (type == REACTION_USER) {
+                SessionLog log = sessions.get(readString(in));
+                Message msg = log != null ? log.findById(readString(in)) : null;
+                String emoji = readString(in);
+                String username = readString(in);
+                boolean present = in.readBoolean();
+                if (msg != null) msg.setReaction(emoji, username, present);
+            } else if (type == REACTION) {
+                // Count-only record from before reactions were per user
+                SessionLog log = sessions.get(readString(in));
+                Message msg = log != null ? log.findById(readString(in)) : null;
+                String emoji = readString(in);
+                int count = in.readInt();
+                if (msg != null) msg.setLegacyReactionCount(emoji, count);
+            } else if (type == PROFILE) {
+                String username = readString(in);
+                User user = users.get(username);
+                UserProfile profile = profiles.computeIfAbsent(username, UserProfile::new);
+                String displayName = readString(in);
+                String email = readString(in);
+                if (user != null) {
+                    user.displayName = displayName;
+                    user.email = email;
+                }
+                profile.bio = readString(in);
+                profile.profilePicture = readString(in);
+                profile.location = readString(in);
+                profile.website = readString(in);
+                profile.phoneNumber = readString(in);
+            } else if (type == SETTINGS) {
+                UserSettings userSettings = settings.computeIfAbsent(readString(in), UserSettings::new);
+                userSettings.notifications = in.readBoolean();
+                userSettings.soundEnabled = in.readBoolean();
+                userSettings.theme = readString(in);
+                userSettings.language = readString(in);
+                userSettings.compactMode = in.readBoolean();
+                userSettings.readReceipts = in.readBoolean();
+                userSettings.sessionTimeout = in.readInt();
+                userSettings.autoRefresh = in.readBoolean();
+                userSettings.refreshInterval = in.readInt();
+                userSettings.showTimestamps = in.readBoolean();
+                userSettings.showTypingIndicators = in.readBoolean();
+                userSettings.maxMessagesDisplay = in.readInt();
+            } else {
+                throw new IOException("Unknown write-ahead log record type " + type);
+            }
+        }
+        
+        static List<Long> generations(File dir) {
+            List<Long> found = new ArrayList<>();
+            String[] names = dir.list();
+            if (names == null) return found;
+            for (String name : names) {
+                Matcher matcher = FILE_NAME.matcher(name);
+                if (matcher.matches()) found.add(Long.parseLong(matcher.group(1)));
+            }
+            Collections.sort(found);
+            return found;
+        }
+        
+        static File fileFor(File dir, long walGeneration) {
+            return new File(dir, "wal-" + walGeneration + ".log");
+        }
+        
+        private static Message readMessage(DataInputStream in) throws IOException {
+            Message msg = new Message(readString(in), readString(in), readString(in), readString(in),
+                readString(in), readString(in));
+            msg.replyToId = readString(in);
+            msg.replyToContent = readString(in);
+            msg.replyToUsername = readString(in);
+            return msg;
+        }
+        
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        private static void putInt(byte[] buf, int offset, int value) {
+            buf[offset] = (byte) (value >>> 24);
+            buf[offset + 1] = (byte) (value >>> 16);
+            buf[offset + 2] = (byte) (value >>> 8);
+            buf[offset + 3] = (byte) value;
+        }
+        
+        // Payload encoder: a type byte, then fields; strings are length-prefixed UTF-8 with -1 for null
+        static class Record {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            private final DataOutputStream out = new DataOutputStream(bytes);
             
-            if ("GET".equals(method)) {
-                UserSettings userSettings = settings.get(username);
-                if (userSettings == null) {
-                    userSettings = new UserSettings(username);
-                    settings.put(username, userSettings);
+            Record(byte type) {
+                bytes.write(type);
+            }
+            
+            Record string(String value) {
+                try {
+                    writeString(out, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // Cannot happen for an in-memory stream
                 }
-                
-                StringBuilder json = new StringBuilder("{");
-                json.append("\"username\":\"").append(userSettings.username).append("\",");
-                json.append("\"notifications\":").append(userSettings.notifications).append(",");
-                json.append("\"soundEnabled\":").append(userSettings.soundEnabled).append(",");
-                json.append("\"theme\":\"").append(userSettings.theme).append("\",");
-                json.append("\"language\":\"").append(userSettings.language).append("\",");
-                json.append("\"compactMode\":").append(userSettings.compactMode).append(",");
-                json.append("\"readReceipts\":").append(userSettings.readReceipts).append(",");
-                json.append("\"sessionTimeout\":").append(userSettings.sessionTimeout);
-                json.append("}");
-                
-                sendResponse(exchange, json.toString(), 200);
-                
-            } else if ("POST".equals(method)) {
-                String body = readRequestBody(exchange);
-                UserSettings userSettings = settings.get(username);
-                
-                if (userSettings == null) {
-                    userSettings = new UserSettings(username);
-                    settings.put(username, userSettings);
+                return this;
+            }
+            
+            Record bool(boolean value) {
+                bytes.write(value ? 1 : 0);
+                return this;
+            }
+            
+            Record integer(int value) {
+                try {
+                    out.writeInt(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return this;
+            }
+            
+            Record int64(long value) {
+                try {
+                    out.writeLong(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return this;
+            }
+            
+            byte[] toByteArray() {
+                return bytes.toByteArray();
+            }
+        }
+        
+        static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+        }
+    }
+    
+    // Point-in-time images of all state; on startup the newest one is memory-mapped and its sessions decoded in parallel.
+    // Layout: a users block of length-prefixed log records, one block per session, a directory of session blocks, then a trailer.
+    static class SnapshotStore {
+        private static final int MAGIC = 0x414C534E; // "ALSN"
+        private static final int VERSION = 2; // 2: reactions list their users; version 1 files are still read
+        private static final int TRAILER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 8;
+        private static final Pattern FILE_NAME = Pattern.compile("snapshot-(\\d+)\\.bin");
+        private static final byte EDITED = 1;
+        private static final byte DELETED = 2;
+        
+        private static final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(daemonThreads("alpha-snapshot"));
+        private static volatile long lastSnapshotNanos = System.nanoTime();
+        
+        // Snapshots once the log has grown by walBytes, or after intervalSeconds if it has grown at all
+        static void schedule(long intervalSeconds, long walBytes) {
+            long checkSeconds = Math.max(1, Math.min(10, intervalSeconds));
+            snapshotter.scheduleWithFixedDelay(() -> {
+                long grown = WriteAheadLog.bytesSinceRotation();
+                boolean due = System.nanoTime() - lastSnapshotNanos >= TimeUnit.SECONDS.toNanos(intervalSeconds);
+                if (grown >= walBytes || (grown > 0 && due)) {
+                    try {
+                        snapshotNow();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Snapshot failed: " + e.getMessage());
+                    }
                 }
+            }, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+        }
+        
+        static synchronized void snapshotNow() throws IOException {
+            long started = System.nanoTime();
+            File dir = WriteAheadLog.dataDir();
+            // Everything logged before the rotation is already in memory, so the image taken next covers it
+            long snapshotGeneration = WriteAheadLog.rotate();
+            File tmp = new File(dir, "snapshot-" + snapshotGeneration + ".tmp");
+            long messages = write(tmp, snapshotGeneration);
+            Files.move(tmp.toPath(), new File(dir, "snapshot-" + snapshotGeneration + ".bin").toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+            deleteObsolete(dir, snapshotGeneration);
+            lastSnapshotNanos = System.nanoTime();
+            System.out.println("Snapshot " + snapshotGeneration + ": " + sessions.size() + " sessions, " + messages
+                + " messages in " + TimeUnit.NANOSECONDS.toMillis(lastSnapshotNanos - started) + " ms");
+        }
+        
+        private static long write(File file, long snapshotGeneration) throws IOException {
+            long messages = 0;
+            try (FileOutputStream fileOut = new FileOutputStream(file)) {
+                FileChannel fileChannel = fileOut.getChannel();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
                 
-                // Update settings
-                String notifications = extractParam(body, "notifications");
-                if (notifications != null) userSettings.notifications = "true".equals(notifications);
+                // Users first, so the profile records that follow can reach their user
+                List<WriteAheadLog.Record> userRecords = new ArrayList<>();
+                for (User user : users.values()) {
+                    userRecords.add(WriteAheadLog.userRecord(user));
+                    userRecords.add(WriteAheadLog.userStatsRecord(user));
+                }
+                for (UserProfile profile : profiles.values()) {
+                    userRecords.add(WriteAheadLog.profileRecord(users.get(profile.username), profile));
+                }
+                for (UserSettings userSettings : settings.values()) {
+                    userRecords.add(WriteAheadLog.settingsRecord(userSettings));
+                }
+                for (WriteAheadLog.Record record : userRecords) {
+                    byte[] payload = record.toByteArray();
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                }
+                out.flush();
+                long usersLength = fileChannel.position();
                 
-                String soundEnabled = extractParam(body, "soundEnabled");
-                if (soundEnabled != null) userSettings.soundEnabled = "true".equals(soundEnabled);
+                List<long[]> directory = new ArrayList<>();
+                for (Map.Entry<String, SessionLog> entry : sessions.entrySet()) {
+                    long offset = fileChannel.position();
+                    messages += writeSession(out, entry.getKey(), entry.getValue());
+                    out.flush();
+                    directory.add(new long[] { offset, fileChannel.position() - offset });
+                }
                 
-                String theme = extractParam(body, "theme");
-                if (theme != null) userSettings.theme = theme;
+                long directoryOffset = fileChannel.position();
+                for (long[] block : directory) {
+                    out.writeLong(block[0]);
+                    out.writeLong(block[1]);
+                }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(snapshotGeneration);
+                out.writeLong(0); // Users block offset
+                out.writeLong(usersLength);
+                out.writeInt(directory.size());
+                out.writeLong(directoryOffset);
+                out.flush();
+                fileChannel.force(true);
+            }
+            return messages;
+        }
+        
+        private static long writeSession(DataOutputStream out, String sessionId, SessionLog log) throws IOException {
+            List<Message> messages = log.range(0, Integer.MAX_VALUE);
+            WriteAheadLog.writeString(out, sessionId);
+            out.writeInt(messages.size());
+            for (Message msg : messages) {
+                writeMessage(out, msg);
+            }
+            return messages.size();
+        }
+        
+        // Message encoding shared by snapshots and cold segments; the seq is implied by position
+        static void writeMessage(DataOutputStream out, Message msg) throws IOException {
+            WriteAheadLog.writeString(out, msg.id);
+            WriteAheadLog.writeString(out, msg.content);
+            WriteAheadLog.writeString(out, msg.sender);
+            WriteAheadLog.writeString(out, msg.deviceType);
+            WriteAheadLog.writeString(out, msg.username);
+            WriteAheadLog.writeString(out, msg.timestamp);
+            WriteAheadLog.writeString(out, msg.replyToId);
+            WriteAheadLog.writeString(out, msg.replyToContent);
+            WriteAheadLog.writeString(out, msg.replyToUsername);
+            out.writeByte((msg.isEdited ? EDITED : 0) | (msg.isDeleted ? DELETED : 0));
+            WriteAheadLog.writeString(out, msg.editedTimestamp);
+            Map<String, List<String>> reactions = new HashMap<>();
+            for (Map.Entry<String, Message.ReactionSet> reaction : msg.reactions.entrySet()) {
+                List<String> reacted = new ArrayList<>(reaction.getValue().users.keySet());
+                if (!reacted.isEmpty()) reactions.put(reaction.getKey(), reacted);
+            }
+            out.writeInt(reactions.size());
+            for (Map.Entry<String, List<String>> reaction : reactions.entrySet()) {
+                WriteAheadLog.writeString(out, reaction.getKey());
+                out.writeInt(reaction.getValue().size());
+                for (String username : reaction.getValue()) WriteAheadLog.writeString(out, username);
+            }
+        }
+        
+        // Restores the newest snapshot into the in-memory maps; returns its generation, or 0 when there is none
+        static long loadLatest(File dir) throws IOException {
+            long newest = -1;
+            String[] names = dir.list();
+            if (names != null) {
+                for (String name : names) {
+                    Matcher matcher = FILE_NAME.matcher(name);
+                    if (matcher.matches()) newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+                }
+            }
+            if (newest < 0) return 0;
+            
+            File file = new File(dir, "snapshot-" + newest + ".bin");
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                if (fileSize < TRAILER_BYTES) throw new IOException("Truncated snapshot " + file);
+                // One mapping for the whole file when it fits in a buffer, otherwise one per block
+                MappedByteBuffer whole = fileSize <= Integer.MAX_VALUE
+                    ? fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize) : null;
                 
-                String language = extractParam(body, "language");
-                if (language != null) userSettings.language = language;
+                ByteBuffer trailer = region(fileChannel, whole, fileSize - TRAILER_BYTES, TRAILER_BYTES);
+                int version = trailer.getInt() == MAGIC ? trailer.getInt() : -1;
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("Unrecognised snapshot " + file);
+                }
+                long snapshotGeneration = trailer.getLong();
+                long usersOffset = trailer.getLong();
+                long usersLength = trailer.getLong();
+                int sessionCount = trailer.getInt();
+                long directoryOffset = trailer.getLong();
                 
-                String compactMode = extractParam(body, "compactMode");
-                if (compactMode != null) userSettings.compactMode = "true".equals(compactMode);
+                ByteBuffer usersBlock = region(fileChannel, whole, usersOffset, usersLength);
+                while (usersBlock.hasRemaining()) {
+                    byte[] payload = new byte[usersBlock.getInt()];
+                    usersBlock.get(payload);
+                    WriteAheadLog.apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                }
                 
-                String readReceipts = extractParam(body, "readReceipts");
-                if (readReceipts != null) userSettings.readReceipts = "true".equals(readReceipts);
+                ByteBuffer directory = region(fileChannel, whole, directoryOffset, (long) sessionCount * 16);
+                long[] offsets = new long[sessionCount];
+                long[] lengths = new long[sessionCount];
+                for (int i = 0; i < sessionCount; i++) {
+                    offsets[i] = directory.getLong();
+                    lengths[i] = directory.getLong();
+                }
                 
-                String sessionTimeout = extractParam(body, "sessionTimeout");
-                if (sessionTimeout != null) {
+                // Sessions are independent, so each block decodes and indexes on its own core
+                List<Map<String, Integer>> sent = IntStream.range(0, sessionCount).parallel().mapToObj(i -> {
                     try {
-                        userSettings.sessionTimeout = Integer.parseInt(sessionTimeout);
-                    } catch (NumberFormatException e) {
-                        // Keep default value
+                        return readSession(region(fileChannel, whole, offsets[i], lengths[i]), version);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                }
+                }).collect(Collectors.toList());
                 
-                sendResponse(exchange, "{\"success\":true,\"message\":\"Settings updated successfully\"}", 200);
+                // Message counts come from the messages themselves, so they agree with what the log tail skips
+                for (Map<String, Integer> counts : sent) {
+                    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                        User user = users.get(count.getKey());
+                        if (user != null) user.totalMessages += count.getValue();
+                    }
+                }
+                return snapshotGeneration;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
         }
         
-        private void handleUser(HttpExchange exchange, String path, String method) throws IOException {
-            String action = path.substring(10); // Remove "/api/user/"
-            
-            if ("stats".equals(action) && "GET".equals(method)) {
-                String query = exchange.getRequestURI().getQuery();
-                String username = extractParam(query, "username");
-                
-                if (username == null) {
-                    sendResponse(exchange, "{\"error\":\"Username required\"}", 400);
-                    return;
+        private static ByteBuffer region(FileChannel fileChannel, MappedByteBuffer whole, long offset, long length) throws IOException {
+            if (whole == null) {
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            ByteBuffer view = whole.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + length));
+            return view.slice();
+        }
+        
+        // Returns how many of the session's messages each username sent
+        private static Map<String, Integer> readSession(ByteBuffer block, int version) {
+            String sessionId = getString(block);
+            int count = block.getInt();
+            SessionLog log = new SessionLog();
+            log.searchIndex.deferUntilSearched();
+            Map<String, Integer> sent = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                Message msg = readMessage(block, version);
+                long seq = log.append(msg); // Deleted messages keep their seq but stay out of the search index
+                if (msg.username != null) sent.merge(msg.username, 1, Integer::sum);
+                if ((seq & SessionLog.SEGMENT_MASK) == 0) ColdStore.spillRestored(log);
+            }
+            sessions.put(sessionId, log);
+            return sent;
+        }
+        
+        static Message readMessage(ByteBuffer block) {
+            return readMessage(block, VERSION);
+        }
+        
+        static Message readMessage(ByteBuffer block, int version) {
+            Message msg = new Message(getString(block), getString(block), getString(block), getString(block),
+                getString(block), getString(block));
+            msg.replyToId = getString(block);
+            msg.replyToContent = getString(block);
+            msg.replyToUsername = getString(block);
+            byte flags = block.get();
+            msg.isEdited = (flags & EDITED) != 0;
+            msg.isDeleted = (flags & DELETED) != 0;
+            msg.editedTimestamp = getString(block);
+            int reactionCount = block.getInt();
+            for (int r = 0; r < reactionCount; r++) {
+                String emoji = getString(block);
+                if (version == 1) {
+                    msg.setLegacyReactionCount(emoji, block.getInt());
+                    continue;
                 }
-                
-                User user = users.get(username);
-                if (user == null) {
-                    sendResponse(exchange, "{\"error\":\"User not found\"}", 404);
+                for (int u = block.getInt(); u > 0; u--) msg.setReaction(emoji, getString(block), true);
+            }
+            return msg;
+        }
+        
+        private static String getString(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0) return null;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        // Log generations before the snapshot, and older snapshots, are no longer needed for recovery
+        static void deleteObsolete(File dir, long snapshotGeneration) {
+            for (long walGeneration : WriteAheadLog.generations(dir)) {
+                if (walGeneration < snapshotGeneration) WriteAheadLog.fileFor(dir, walGeneration).delete();
+            }
+            String[] names = dir.list();
+            if (names == null) return;
+            for (String name : names) {
+                Matcher matcher = FILE_NAME.matcher(name);
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < snapshotGeneration) {
+                    new File(dir, name).delete();
+                }
+            }
+        }
+    }
+    
+    // Disk tier for SessionLog segments that fell out of the hot window, with a small LRU of paged-in segments
+    static class ColdStore {
+        private static File directory; // null while retention is disabled
+        private static long hotMessages;
+        private static long hotMillis;
+        private static final long QUIET_MILLIS = 60000; // Segments looked up this recently are left in memory
+        
+        private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("alpha-retention"));
+        private static final Object cacheLock = new Object();
+        private static LinkedHashMap<String, Message[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private static final Map<String, CompletableFuture<Message[]>> loading = new ConcurrentHashMap<>(); // Page-ins in flight
+        
+        // Files only back the current process; persistence across restarts is the log and snapshots' job.
+        // Opened before recovery so that a restored history spills as it loads instead of all landing on the heap.
+        static void open(File dir, long messages, long minutes, int cacheSegments) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create cold segment directory " + dir);
+            }
+            File[] stale = dir.listFiles();
+            if (stale != null) {
+                for (File file : stale) file.delete();
+            }
+            directory = dir;
+            hotMessages = messages;
+            hotMillis = TimeUnit.MINUTES.toMillis(minutes);
+            cache = new LinkedHashMap<String, Message[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Message[]> eldest) {
+                    return size() > cacheSegments;
+                }
+            };
+        }
+        
+        // After recovery, so the sweeper never races a log that is still being restored
+        static void start() {
+            sweeper.scheduleWithFixedDelay(ColdStore::sweep, 10, 10, TimeUnit.SECONDS);
+        }
+        
+        // Recovery only: restored messages carry no age, so the window is applied by count alone
+        static void spillRestored(SessionLog log) {
+            if (directory == null) return;
+            try {
+                log.spill(hotMessages, Long.MAX_VALUE, Long.MAX_VALUE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Spilling restored messages failed", e);
+            }
+        }
+        
+        static void sweep() {
+            long now = System.currentTimeMillis();
+            int spilled = 0;
+            for (SessionLog log : sessions.values()) {
+                try {
+                    spilled += log.spill(hotMessages, now - hotMillis, now - QUIET_MILLIS);
+                } catch (IOException e) {
+                    System.err.println("Spilling cold messages failed: " + e.getMessage());
                     return;
                 }
-                
-                StringBuilder json = new StringBuilder("{");
-                json.append("\"username\":\"").append(user.username).append("\",");
-                json.append("\"displayName\":\"").append(user.displayName).append("\",");
-                json.append("\"totalMessages\":").append(user.totalMessages).append(",");
-                json.append("\"totalSessions\":").append(user.totalSessions).append(",");
-                json.append("\"createdAt\":\"").append(user.createdAt).append("\",");
-                json.append("\"lastActive\":\"").append(user.lastActive).append("\"");
-                json.append("}");
-                
-                sendResponse(exchange, json.toString(), 200);
+            }
+            if (spilled > 0) {
+                System.out.println("Retention: moved " + spilled + " segments (" + spilled * SessionLog.SEGMENT_SIZE + " messages) to disk");
             }
         }
         
-        // Advanced chat feature handlers
-        private void handleReactions(HttpExchange exchange, String path, String method) throws IOException {
-            if (!"POST".equals(method)) {
-                sendResponse(exchange, "{\"error\":\"Method not allowed\"}", 405);
-                return;
+        static void write(SessionLog log, int segment, Message[] messages) throws IOException {
+            File file = fileFor(log, segment);
+            File tmp = new File(directory, file.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+                for (Message msg : messages) {
+                    SnapshotStore.writeMessage(out, msg);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        // Shared, read-only copy for scrollback and search
+        static Message[] read(SessionLog log, int segment) {
+            String key = log.storeId + "-" + segment;
+            synchronized (cacheLock) {
+                Message[] messages = cache.get(key);
+                if (messages != null) return messages;
+            }
+            // Promoted since the caller looked: the in-memory copy is the live one
+            Message[] promoted = log.segments[segment];
+            if (promoted != null) return promoted;
+            return pageIn(log, segment, key, true);
+        }
+        
+        // Hands the segment back to its log for good, so exactly one copy of each message is ever mutated
+        static Message[] take(SessionLog log, int segment) {
+            String key = log.storeId + "-" + segment;
+            synchronized (cacheLock) {
+                Message[] messages = cache.remove(key);
+                if (messages != null) return messages;
+            }
+            return pageIn(log, segment, key, false);
+        }
+        
+        // Reads the file outside cacheLock; concurrent callers for the same segment share one read and one copy
+        private static Message[] pageIn(SessionLog log, int segment, String key, boolean keep) {
+            CompletableFuture<Message[]> loaded = new CompletableFuture<>();
+            CompletableFuture<Message[]> inFlight = loading.putIfAbsent(key, loaded);
+            if (inFlight != null) {
+                try {
+                    return inFlight.join();
+                } catch (CompletionException e) {
+                    throw (RuntimeException) e.getCause();
+                }
+            }
+            try {
+                Message[] messages = load(log, segment);
+                synchronized (cacheLock) {
+                    // Skipped once promoted, so the cache never holds a stale copy of a live segment
+                    if (keep && log.segments[segment] == null) cache.put(key, messages);
+                }
+                loaded.complete(messages);
+                return messages;
+            } catch (RuntimeException e) {
+                loaded.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(key, loaded);
+            }
+        }
+        
+        static void invalidate(SessionLog log, int segment) {
+            synchronized (cacheLock) {
+                cache.remove(log.storeId + "-" + segment);
+            }
+        }
+        
+        private static Message[] load(SessionLog log, int segment) {
+            try {
+                ByteBuffer block = ByteBuffer.wrap(Files.readAllBytes(fileFor(log, segment).toPath()));
+                Message[] messages = new Message[SessionLog.SEGMENT_SIZE];
+                long firstSeq = ((long) segment << SessionLog.SEGMENT_SHIFT) + 1;
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = SnapshotStore.readMessage(block);
+                    messages[i].seq = firstSeq + i;
+                }
+                return messages;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot page in cold messages", e);
+            }
+        }
+        
+        private static File fileFor(SessionLog log, int segment) {
+            return new File(directory, log.storeId + "-" + segment + ".seg");
+        }
+    }
+    
+    // Coalesces reaction bursts: within one window a session's version is bumped once, and each message
+    // reacted to is published once with its latest counts, however many reactions arrived
+    static class ReactionBatcher {
+        private static final long WINDOW_MILLIS = Long.getLong("alpha.reactions.coalesceMillis", 50);
+        private static final Map<String, Pending> pending = new ConcurrentHashMap<>();
+        
+        static class Pending {
+            final Set<Message> messages = ConcurrentHashMap.newKeySet();
+            final AtomicBoolean scheduled = new AtomicBoolean();
+        }
+        
+        static void changed(String sessionId, Message message) {
+            Pending batch = pending.computeIfAbsent(sessionId, k -> new Pending());
+            batch.messages.add(message);
+            if (batch.scheduled.compareAndSet(false, true)) {
+                scheduler.schedule(() -> flush(sessionId, batch), WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        private static void flush(String sessionId, Pending batch) {
+            batch.scheduled.set(false); // Reactions from here on start the next window
+            SessionLog log = sessions.get(sessionId);
+            if (log != null) log.touch();
+            
+            Iterator<Message> iterator = batch.messages.iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next();
+                iterator.remove();
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject().name("id").value(message.id).name("reactions");
+                ApiHandler.writeReactionsJson(json, message);
+                json.endObject();
+                SessionEventBus.publish(sessionId, "reaction", 0, json.toByteArray());
+                json.release();
+            }
+            
+            // Quiet sessions give their entry up. A reaction that already holds this batch still gets flushed:
+            // it either finds the window open and schedules it, or was added before the re-check below
+            if (batch.messages.isEmpty() && !batch.scheduled.get() && pending.remove(sessionId, batch)
+                    && !batch.messages.isEmpty() && batch.scheduled.compareAndSet(false, true)) {
+                scheduler.schedule(() -> flush(sessionId, batch), WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    // Who is typing in each session. A repeat "start" only pushes the entry's deadline out; entries
+    // expire off a hashed timer wheel, and subscribers hear about it only when the set of typers changes.
+    static class TypingRegistry {
+        static final long TTL_MILLIS = 3000;
+        private static final long TICK_MILLIS = 250;
+        private static final int WHEEL_SLOTS = 16; // 4 s of ticks: longer than the TTL, so a deadline never laps the wheel
+        
+        private static final Map<String, SessionTyping> sessions = new ConcurrentHashMap<>();
+        private static final List<Queue<Entry>> wheel = new ArrayList<>();
+        private static volatile long lastTick = System.currentTimeMillis() / TICK_MILLIS; // Written only by the ticker, read by schedule()
+        
+        static {
+            for (int i = 0; i < WHEEL_SLOTS; i++) wheel.add(new ConcurrentLinkedQueue<>());
+            scheduler.scheduleAtFixedRate(TypingRegistry::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        
+        static class SessionTyping {
+            final Map<String, Entry> users = new ConcurrentHashMap<>();
+            final AtomicLong version = new AtomicLong();
+        }
+        
+        static class Entry {
+            final String sessionId;
+            final String username;
+            volatile long expiresAt;
+            volatile boolean removed; // Set by stop or expiry; a refresh that sees it re-registers instead
+            
+            Entry(String sessionId, String username, long expiresAt) {
+                this.sessionId = sessionId;
+                this.username = username;
+                this.expiresAt = expiresAt;
+            }
+        }
+        
+        static void start(String sessionId, String username) {
+            long deadline = System.currentTimeMillis() + TTL_MILLIS;
+            SessionTyping session = sessions.computeIfAbsent(sessionId, k -> new SessionTyping());
+            
+            // Fast path for the common case, another keypress from someone already typing
+            Entry entry = session.users.get(username);
+            if (entry != null) {
+                entry.expiresAt = deadline;
+                if (!entry.removed) return;
+            }
+            
+            synchronized (session) {
+                entry = session.users.get(username);
+                if (entry != null && !entry.removed) {
+                    entry.expiresAt = deadline;
+                    return;
+                }
+                entry = new Entry(sessionId, username, deadline);
+                session.users.put(username, entry);
+                schedule(entry);
+                changed(sessionId, session);
+            }
+        }
+        
+        static void stop(String sessionId, String username) {
+            SessionTyping session = sessions.get(sessionId);
+            if (session == null) return;
+            synchronized (session) {
+                Entry entry = session.users.remove(username);
+                if (entry == null) return;
+                entry.removed = true;
+                changed(sessionId, session);
+            }
+        }
+        
+        static long version(String sessionId) {
+            SessionTyping session = sessions.get(sessionId);
+            return session != null ? session.version.get() : 0;
+        }
+        
+        static void writeUsers(JsonWriter json, String sessionId) {
+            writeUsers(json, sessions.get(sessionId));
+        }
+        
+        private static void writeUsers(JsonWriter json, SessionTyping session) {
+            json.beginArray();
+            if (session != null) {
+                for (String username : session.users.keySet()) json.value(username);
+            }
+            json.endArray();
+        }
+        
+        // Caller holds the session's lock, so versions and published sets go out in the order the changes applied;
+        // publishing only queues the event on each subscriber
+        private static void changed(String sessionId, SessionTyping session) {
+            session.version.incrementAndGet();
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("users");
+            writeUsers(json, session);
+            json.endObject();
+            SessionEventBus.publish(sessionId, "typing", 0, json.toByteArray());
+            json.release();
+        }
+        
+        // Deadlines that already passed go in the next slot to be swept
+        private static void schedule(Entry entry) {
+            long tick = Math.max(entry.expiresAt / TICK_MILLIS, lastTick + 1);
+            wheel.get((int) (tick % WHEEL_SLOTS)).add(entry);
+        }
+        
+        private static void tick() {
+            long now = System.currentTimeMillis();
+            long target = now / TICK_MILLIS;
+            // After a stall, one lap covers every slot
+            for (long tick = Math.max(lastTick + 1, target - WHEEL_SLOTS + 1); tick <= target; tick++) {
+                lastTick = tick;
+                Queue<Entry> slot = wheel.get((int) (tick % WHEEL_SLOTS));
+                for (int pending = slot.size(); pending > 0; pending--) {
+                    Entry entry = slot.poll();
+                    if (entry == null) break;
+                    if (entry.removed) continue;
+                    if (entry.expiresAt > now) {
+                        schedule(entry); // Refreshed since it was filed; file it under its new deadline
+                    } else {
+                        expire(entry, now);
+                    }
+                }
+            }
+            lastTick = Math.max(lastTick, target);
+        }
+        
+        private static void expire(Entry entry, long now) {
+            SessionTyping session = sessions.get(entry.sessionId);
+            synchronized (session) {
+                // Mark first, then re-check: a refresh racing this either sees the mark or is seen here
+                entry.removed = true;
+                if (entry.expiresAt > now) {
+                    entry.removed = false;
+                    schedule(entry);
+                    return;
+                }
+                session.users.remove(entry.username, entry);
+                changed(entry.sessionId, session);
+            }
+        }
+    }
+    
+    // Token buckets per user and per session for each kind of request, kept as one "full again at" time
+    // per key (the GCRA form of a token bucket) so taking a token is a single compare-and-set.
+    // Budgets are "rate/burst" in requests per second, or "off".
+    static class RateLimiter {
+        private static final boolean ENABLED = !"off".equals(System.getProperty("alpha.rate")); // Load tests turn every budget off
+        private static final int MAX_KEYS = Integer.getInteger("alpha.rate.maxKeys", 100000); // Per bucket map
+        private static final int OVERFLOW_SLOTS = 256; // Power of two
+        private static final long SWEEP_SECONDS = 10;
+        private static final List<Buckets> all = new ArrayList<>(); // Declared before the limiters that register here
+        
+        static final RateLimiter SENDS = new RateLimiter("send", "5/20", "50/200");
+        static final RateLimiter TYPING = new RateLimiter("typing", "4/8", "40/80");
+        static final RateLimiter SEARCHES = new RateLimiter("search", "2/10", "10/40");
+        
+        private final Buckets perUser;
+        private final Buckets perSession;
+        
+        private RateLimiter(String name, String userDefault, String sessionDefault) {
+            perUser = new Buckets(ENABLED ? System.getProperty("alpha.rate." + name, userDefault) : "off");
+            perSession = new Buckets(ENABLED ? System.getProperty("alpha.rate." + name + ".session", sessionDefault) : "off");
+            synchronized (all) {
+                if (all.isEmpty()) {
+                    scheduler.scheduleWithFixedDelay(RateLimiter::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+                }
+                all.add(perUser);
+                all.add(perSession);
+            }
+        }
+        
+        // Takes permits from both buckets; returns 0, or the nanoseconds until the request would be allowed.
+        // A username of null is only held to the session's budget.
+        long acquire(String sessionId, String username, int permits) {
+            AtomicLong user = username != null ? perUser.bucket(username) : null;
+            long wait = user != null ? perUser.take(user, permits) : 0;
+            if (wait > 0) return wait;
+            wait = perSession.take(perSession.bucket(sessionId), permits);
+            if (wait > 0 && user != null) perUser.refund(user, permits);
+            return wait;
+        }
+        
+        long acquire(String sessionId, String username) {
+            return acquire(sessionId, username, 1);
+        }
+        
+        // A batch from several users: each pays for their own messages and the session for all of them
+        long acquire(String sessionId, Map<String, Integer> permitsByUser, int permits) {
+            Map<AtomicLong, Integer> charged = new HashMap<>(); // Users that share an overflow bucket are refunded from it together
+            long wait = 0;
+            for (Map.Entry<String, Integer> entry : permitsByUser.entrySet()) {
+                AtomicLong user = perUser.bucket(entry.getKey());
+                wait = perUser.take(user, entry.getValue());
+                if (wait > 0) break;
+                charged.merge(user, entry.getValue(), Integer::sum);
+            }
+            if (wait == 0) wait = perSession.take(perSession.bucket(sessionId), permits);
+            if (wait > 0) {
+                for (Map.Entry<AtomicLong, Integer> entry : charged.entrySet()) perUser.refund(entry.getKey(), entry.getValue());
+            }
+            return wait;
+        }
+        
+        // Whole seconds for a Retry-After header, rounded up
+        static long retryAfterSeconds(long waitNanos) {
+            return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        }
+        
+        // A key whose bucket has refilled is indistinguishable from a new one, so dropping it loses nothing
+        private static void sweep() {
+            long now = System.nanoTime();
+            synchronized (all) {
+                for (Buckets buckets : all) {
+                    buckets.full.values().removeIf(fullAt -> fullAt.get() - now <= 0);
+                }
+            }
+        }
+        
+        static class Buckets {
+            final long intervalNanos; // One token's worth of time; 0 when the budget is off
+            final long burstNanos;
+            final Map<String, AtomicLong> full = new ConcurrentHashMap<>(); // Key -> when its bucket is full again
+            // While the map is full, new keys hash to one of these, so a flood of made-up keys does not put
+            // every newcomer in a single bucket
+            final AtomicLong[] overflow = new AtomicLong[OVERFLOW_SLOTS];
+            
+            Buckets(String budget) {
+                String[] parts = budget.trim().split("/");
+                double rate = "off".equals(parts[0]) ? 0 : Double.parseDouble(parts[0]);
+                int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.max(1, Math.ceil(rate));
+                intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+                burstNanos = intervalNanos * burst;
+                long now = System.nanoTime();
+                for (int i = 0; i < overflow.length; i++) overflow[i] = new AtomicLong(now);
+            }
+            
+            // The bucket to charge, and later refund, for a key; null when the budget is off
+            AtomicLong bucket(String key) {
+                if (intervalNanos == 0) return null;
+                AtomicLong fullAt = full.get(key);
+                if (fullAt != null) return fullAt;
+                if (full.size() < MAX_KEYS) return full.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+                int hash = key.hashCode() * 0x9E3779B9; // Spread, so similar keys land in different slots
+                return overflow[(hash ^ (hash >>> 16)) & (OVERFLOW_SLOTS - 1)];
+            }
+            
+            long take(AtomicLong fullAt, int permits) {
+                if (fullAt == null) return 0;
+                long cost = intervalNanos * permits;
+                while (true) {
+                    long now = System.nanoTime();
+                    long previous = fullAt.get();
+                    long next = (previous - now > 0 ? previous : now) + cost;
+                    long excess = next - now - Math.max(burstNanos, cost); // A request larger than the burst needs a full bucket
+                    if (excess > 0) return excess;
+                    if (fullAt.compareAndSet(previous, next)) return 0;
+                }
+            }
+            
+            void refund(AtomicLong fullAt, int permits) {
+                if (fullAt != null) fullAt.addAndGet(-intervalNanos * permits);
+            }
+        }
+    }
+    
+    // Request and server metrics for GET /api/metrics in the Prometheus text format. The filter wraps every
+    // HttpServer context; recording is LongAdders and striped histogram cells, with nothing locked per request.
+    static class Metrics {
+        // Route labels; anything else is "other", so the label set stays bounded whatever paths clients send
+        static final String[] ROUTES = { "/api/messages/wait", "/api/messages/batch", "/api/messages", "/api/reactions",
+            "/api/typing", "/api/search", "/api/edit", "/api/delete", "/api/profile", "/api/settings", "/api/user",
+            "/api/stream", "/api/metrics", "/qr", "/static", "/register", "/login", "/dashboard", "/profile",
+            "/settings", "/chat", "/", "other" };
+        static final String[] METHODS = { "GET", "POST", "other" };
+        private static final int ROOT = ROUTES.length - 2;
+        private static final int OTHER = ROUTES.length - 1;
+        
+        private static final AtomicReferenceArray<RouteStats> routes = new AtomicReferenceArray<>(ROUTES.length * METHODS.length);
+        
+        static final LongAdder messagesPosted = new LongAdder();
+        static final LongAdder longPollHits = new LongAdder(); // Answered with new messages
+        static final LongAdder longPollMisses = new LongAdder(); // Timed out empty
+        static final LongAdder notModified = new LongAdder(); // Conditional GETs answered 304
+        static final LongAdder modified = new LongAdder(); // Conditional GETs that needed a body
+        
+        static final Filter FILTER = new Filter() {
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                Request request = new Request(exchange, stats(exchange));
+                exchange.setStreams(request.in, request);
+                try {
+                    chain.doFilter(exchange);
+                } catch (IOException | RuntimeException e) {
+                    request.finish(500);
+                    throw e;
+                }
+                // Handlers that answer later (long-polls) or keep streaming are recorded when they close the body
+                if (exchange.getResponseCode() != -1) request.finish(exchange.getResponseCode());
+            }
+            
+            public String description() {
+                return "metrics";
+            }
+        };
+        
+        static class RouteStats {
+            final String labels;
+            final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(600);
+            final LongAdder bytesIn = new LongAdder();
+            final LongAdder bytesOut = new LongAdder();
+            final Histogram latency = new Histogram();
+            
+            RouteStats(String route, String method) {
+                labels = "route=\"" + route + "\",method=\"" + method + "\"";
+            }
+            
+            void record(int status, long micros) {
+                int index = Math.min(Math.max(status, 0), statuses.length() - 1);
+                LongAdder count = statuses.get(index);
+                if (count == null) {
+                    statuses.compareAndSet(index, null, new LongAdder());
+                    count = statuses.get(index);
+                }
+                count.increment();
+                latency.record(micros);
+            }
+        }
+        
+        // Log-linear buckets of microseconds: exact below 8, then 8 sub-buckets per power of two (12.5% wide).
+        // Each thread records into one of several stripes, merged only when scraped.
+        static class Histogram {
+            static final int SUB_BITS = 3;
+            static final int SUB_BUCKETS = 1 << SUB_BITS;
+            static final long MAX_MICROS = (1L << 40) - 1; // About 12 days
+            static final int BUCKETS = bucket(MAX_MICROS) + 1;
+            static final int STRIPES = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+            
+            private final AtomicLongArray cells = new AtomicLongArray(STRIPES * BUCKETS);
+            private final LongAdder sumMicros = new LongAdder();
+            
+            void record(long micros) {
+                micros = Math.min(Math.max(micros, 0), MAX_MICROS);
+                int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+                cells.incrementAndGet(stripe * BUCKETS + bucket(micros));
+                sumMicros.add(micros);
+            }
+            
+            static int bucket(long micros) {
+                if (micros < SUB_BUCKETS) return (int) micros;
+                int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+                return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+            }
+            
+            static long lowerBound(int bucket) {
+                if (bucket < SUB_BUCKETS) return bucket;
+                int shift = bucket / SUB_BUCKETS - 1;
+                return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            }
+            
+            static long width(int bucket) {
+                return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+            }
+            
+            long[] snapshot() {
+                long[] counts = new long[BUCKETS];
+                for (int i = 0; i < cells.length(); i++) {
+                    counts[i % BUCKETS] += cells.get(i);
+                }
+                return counts;
+            }
+            
+            // Midpoint of the bucket holding the quantile, in microseconds; NaN with no observations
+            static double quantile(long[] counts, long total, double q) {
+                if (total == 0) return Double.NaN;
+                long rank = (long) Math.ceil(q * total);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank && counts[i] > 0) return lowerBound(i) + (width(i) - 1) / 2.0;
+                }
+                return 0;
+            }
+        }
+        
+        // One exchange in flight: counts body bytes as they pass and records status and latency once
+        static class Request extends OutputStream {
+            final HttpExchange exchange;
+            final RouteStats stats;
+            final long startNanos = System.nanoTime();
+            final InputStream in;
+            private final OutputStream out;
+            private final AtomicBoolean finished = new AtomicBoolean();
+            
+            Request(HttpExchange exchange, RouteStats stats) {
+                this.exchange = exchange;
+                this.stats = stats;
+                this.out = exchange.getResponseBody();
+                this.in = new FilterInputStream(exchange.getRequestBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) stats.bytesIn.increment();
+                        return b;
+                    }
+                    
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) stats.bytesIn.add(read);
+                        return read;
+                    }
+                };
+            }
+            
+            void finish(int status) {
+                if (finished.compareAndSet(false, true)) {
+                    stats.record(status, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                }
+            }
+            
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                stats.bytesOut.increment();
+            }
+            
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                stats.bytesOut.add(length);
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+            
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.close();
+                } finally {
+                    finish(exchange.getResponseCode());
+                }
+            }
+        }
+        
+        static RouteStats stats(HttpExchange exchange) {
+            String method = exchange.getRequestMethod();
+            int methodIndex = "GET".equals(method) ? 0 : "POST".equals(method) ? 1 : 2;
+            int route = route(exchange.getRequestURI().getPath());
+            int index = route * METHODS.length + methodIndex;
+            RouteStats stats = routes.get(index);
+            if (stats == null) {
+                routes.compareAndSet(index, null, new RouteStats(ROUTES[route], METHODS[methodIndex]));
+                stats = routes.get(index);
+            }
+            return stats;
+        }
+        
+        // Mirrors the handlers' own dispatch
+        static int route(String path) {
+            if (path.startsWith("/api/messages/")) {
+                return path.endsWith("/wait") ? 0 : path.endsWith("/batch") ? 1 : 2;
+            }
+            for (int i = 3; i < ROOT; i++) {
+                if (path.startsWith(ROUTES[i])) return i;
+            }
+            return path.equals("/") ? ROOT : OTHER;
+        }
+        
+        static void write(StringBuilder out) {
+            header(out, "alpha_http_requests_total", "counter", "HTTP requests by route, method and status");
+            for (int i = 0; i < routes.length(); i++) {
+                RouteStats stats = routes.get(i);
+                if (stats == null) continue;
+                for (int status = 0; status < stats.statuses.length(); status++) {
+                    LongAdder count = stats.statuses.get(status);
+                    if (count == null) continue;
+                    out.append("alpha_http_requests_total{").append(stats.labels).append(",status=\"").append(status)
+                        .append("\"} ").append(count.sum()).append('\n');
+                }
+            }
+            
+            header(out, "alpha_http_request_duration_seconds", "summary",
+                "Time from request to a complete response (to the end of setup for event streams)");
+            for (int i = 0; i < routes.length(); i++) {
+                RouteStats stats = routes.get(i);
+                if (stats == null) continue;
+                long[] counts = stats.latency.snapshot();
+                long total = 0;
+                for (long count : counts) total += count;
+                for (String q : new String[] { "0.5", "0.99", "0.999" }) {
+                    out.append("alpha_http_request_duration_seconds{").append(stats.labels).append(",quantile=\"").append(q)
+                        .append("\"} ").append(Histogram.quantile(counts, total, Double.parseDouble(q)) / 1e6).append('\n');
+                }
+                out.append("alpha_http_request_duration_seconds_sum{").append(stats.labels).append("} ")
+                    .append(stats.latency.sumMicros.sum() / 1e6).append('\n');
+                out.append("alpha_http_request_duration_seconds_count{").append(stats.labels).append("} ")
+                    .append(total).append('\n');
+            }
+            
+            header(out, "alpha_http_request_bytes_total", "counter", "Request body bytes read");
+            for (int i = 0; i < routes.length(); i++) {
+                RouteStats stats = routes.get(i);
+                if (stats != null) sample(out, "alpha_http_request_bytes_total", stats.labels, stats.bytesIn.sum());
+            }
+            header(out, "alpha_http_response_bytes_total", "counter", "Response body bytes written, after compression");
+            for (int i = 0; i < routes.length(); i++) {
+                RouteStats stats = routes.get(i);
+                if (stats != null) sample(out, "alpha_http_response_bytes_total", stats.labels, stats.bytesOut.sum());
+            }
+            
+            header(out, "alpha_messages_posted_total", "counter", "Messages appended over HTTP and WebSocket");
+            sample(out, "alpha_messages_posted_total", null, messagesPosted.sum());
+            header(out, "alpha_long_polls_total", "counter", "Long-polls by outcome: hit (new messages) or miss (timed out)");
+            sample(out, "alpha_long_polls_total", "result=\"hit\"", longPollHits.sum());
+            sample(out, "alpha_long_polls_total", "result=\"miss\"", longPollMisses.sum());
+            header(out, "alpha_conditional_requests_total", "counter", "GETs with If-None-Match by outcome");
+            sample(out, "alpha_conditional_requests_total", "result=\"not_modified\"", notModified.sum());
+            sample(out, "alpha_conditional_requests_total", "result=\"modified\"", modified.sum());
+            
+            header(out, "alpha_sessions", "gauge", "Chat sessions held by the server");
+            sample(out, "alpha_sessions", null, sessions.size());
+            header(out, "alpha_sessions_live", "gauge", "Sessions with at least one event stream or WebSocket subscriber");
+            sample(out, "alpha_sessions_live", null, SessionEventBus.liveSessions());
+            header(out, "alpha_users", "gauge", "Registered users");
+            sample(out, "alpha_users", null, users.size());
+            
+            // The dispatcher thread and virtual threads have no pool to report on
+            ThreadPoolExecutor http = httpExecutor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) httpExecutor : null;
+            ThreadPoolExecutor writers = (ThreadPoolExecutor) responseWriters;
+            header(out, "alpha_executor_queue_depth", "gauge", "Tasks waiting for a thread");
+            if (http != null) sample(out, "alpha_executor_queue_depth", "executor=\"http\"", http.getQueue().size());
+            sample(out, "alpha_executor_queue_depth", "executor=\"response-writers\"", writers.getQueue().size());
+            header(out, "alpha_executor_active_threads", "gauge", "Threads running a task");
+            if (http != null) sample(out, "alpha_executor_active_threads", "executor=\"http\"", http.getActiveCount());
+            sample(out, "alpha_executor_active_threads", "executor=\"response-writers\"", writers.getActiveCount());
+        }
+        
+        private static void header(StringBuilder out, String name, String type, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        
+        private static void sample(StringBuilder out, String name, String labels, long value) {
+            out.append(name);
+            if (labels != null) out.append('{').append(labels).append('}');
+            out.append(' ').append(value).append('\n');
+        }
+    }
+    
+    // Parked long-poll requests, woken when a message is appended to their session
+    static class LongPollRegistry {
+        private static final Map<String, Queue<PendingPoll>> waiting = new ConcurrentHashMap<>();
+        
+        static class PendingPoll {
+            final Runnable respond;
+            final AtomicBoolean completed = new AtomicBoolean(false);
+            ScheduledFuture<?> timeout;
+            
+            PendingPoll(Runnable respond) {
+                this.respond = respond;
+            }
+            
+            // Runs the response exactly once, whichever of wake-up or timeout gets here first
+            void complete() {
+                if (completed.compareAndSet(false, true)) {
+                    if (timeout != null) timeout.cancel(false);
+                    responseWriters.execute(respond);
+                }
+            }
+        }
+        
+        public static void park(String sessionId, long timeoutMillis, BooleanSupplier ready, Runnable respond) {
+            PendingPoll poll = new PendingPoll(respond);
+            if (ready.getAsBoolean() || timeoutMillis == 0) {
+                poll.complete();
+                return;
+            }
+            
+            // Added inside compute, so it cannot land in a queue that removeIfEmpty has just dropped
+            waiting.compute(sessionId, (k, queue) -> {
+                if (queue == null) queue = new ConcurrentLinkedQueue<>();
+                queue.add(poll);
+                return queue;
+            });
+            poll.timeout = scheduler.schedule(() -> {
+                remove(sessionId, poll);
+                poll.complete();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            
+            // A message may have landed between the first check and enqueueing
+            if (ready.getAsBoolean()) {
+                remove(sessionId, poll);
+                poll.complete();
+            }
+        }
+        
+        public static void wake(String sessionId) {
+            Queue<PendingPoll> queue = waiting.get(sessionId);
+            if (queue == null) return;
+            
+            PendingPoll poll;
+            while ((poll = queue.poll()) != null) {
+                poll.complete();
+            }
+            removeIfEmpty(sessionId);
+        }
+        
+        private static void remove(String sessionId, PendingPoll poll) {
+            Queue<PendingPoll> queue = waiting.get(sessionId);
+            if (queue != null && queue.remove(poll)) removeIfEmpty(sessionId);
+        }
+        
+        // Otherwise every session ID a client ever waited on would keep an entry
+        private static void removeIfEmpty(String sessionId) {
+            waiting.computeIfPresent(sessionId, (k, queue) -> queue.isEmpty() ? null : queue);
+        }
+    }
+    
+    // Fan-out of per-session change events (appends, edits, deletes, reactions, typing) to live subscribers
+    static class SessionEventBus {
+        interface Subscriber {
+            // seq is the message sequence for "message" events and 0 for everything else; data is UTF-8 JSON,
+            // shared between subscribers and, for messages, the message's cached encoding, so it is never modified
+            void onEvent(String type, long seq, byte[] data);
+        }
+        
+        private static final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+        
+        public static void subscribe(String sessionId, Subscriber subscriber) {
+            subscribers.computeIfAbsent(sessionId, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        
+        public static void unsubscribe(String sessionId, Subscriber subscriber) {
+            subscribers.computeIfPresent(sessionId, (k, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        
+        static int liveSessions() {
+            return subscribers.size(); // Emptied sets are removed on unsubscribe
+        }
+        
+        public static void publish(String sessionId, String type, long seq, byte[] data) {
+            Set<Subscriber> set = subscribers.get(sessionId);
+            if (set == null) return;
+            for (Subscriber subscriber : set) {
+                subscriber.onEvent(type, seq, data);
+            }
+        }
+    }
+    
+    // One open text/event-stream response; frames are queued and written off the publisher's thread
+    static class EventStream implements SessionEventBus.Subscriber {
+        private static final int MAX_PENDING_FRAMES = 1000; // Slow clients are dropped and resume via Last-Event-ID
+        private static final long HEARTBEAT_SECONDS = 15;
+        private static final byte[] KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+        
+        final String sessionId;
+        final HttpExchange exchange;
+        final OutputStream out;
+        final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean(false);
+        volatile boolean closed;
+        volatile long lastSeq;
+        ScheduledFuture<?> heartbeat;
+        
+        EventStream(String sessionId, HttpExchange exchange, long lastSeq) {
+            this.sessionId = sessionId;
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.lastSeq = lastSeq;
+        }
+        
+        void start() {
+            heartbeat = scheduler.scheduleAtFixedRate(() -> enqueue(KEEPALIVE),
+                HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        public void onEvent(String type, long seq, byte[] data) {
+            if (seq > 0) {
+                if (seq <= lastSeq) return; // Already replayed
+                lastSeq = seq;
+            }
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(data.length + 48);
+            appendFrame(frame, type, seq, data);
+            enqueue(frame.toByteArray());
+        }
+        
+        // Splices the encoded JSON in as is, only breaking it into data: lines at any raw newline
+        static void appendFrame(ByteArrayOutputStream frame, String type, long seq, byte[] data) {
+            writeAscii(frame, "event: " + type + "\n" + (seq > 0 ? "id: " + seq + "\n" : "") + "data: ");
+            int lineStart = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    frame.write(data, lineStart, i - lineStart);
+                    writeAscii(frame, "\ndata: ");
+                    lineStart = i + 1;
+                }
+            }
+            frame.write(data, lineStart, data.length - lineStart);
+            writeAscii(frame, "\n\n");
+        }
+        
+        private static void writeAscii(ByteArrayOutputStream out, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                out.write(text.charAt(i));
+            }
+        }
+        
+        void enqueue(byte[] frames) {
+            if (closed) return;
+            if (pendingCount.incrementAndGet() > MAX_PENDING_FRAMES) {
+                close();
+                return;
+            }
+            pending.add(frames);
+            if (draining.compareAndSet(false, true)) {
+                responseWriters.execute(this::drain);
+            }
+        }
+        
+        // The only code that touches out, so the exchange is closed here once the write loop has stopped
+        private void drain() {
+            do {
+                try {
+                    byte[] frame;
+                    while (!closed && (frame = pending.poll()) != null) {
+                        pendingCount.decrementAndGet();
+                        out.write(frame);
+                    }
+                    if (!closed) out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+                if (closed) {
+                    pending.clear();
+                    exchange.close(); // draining stays set, so no later drain runs
+                    return;
+                }
+                draining.set(false);
+                // Re-check in case a frame or a close arrived after the last poll but before draining was cleared
+            } while ((closed || !pending.isEmpty()) && draining.compareAndSet(false, true));
+        }
+        
+        // Safe from any thread: only marks the stream closed and leaves the socket to the drain task
+        void close() {
+            if (closed) return;
+            closed = true;
+            SessionEventBus.unsubscribe(sessionId, this);
+            if (heartbeat != null) heartbeat.cancel(false);
+            if (draining.compareAndSet(false, true)) {
+                responseWriters.execute(this::drain);
+            }
+        }
+    }
+    
+    // UserProfile class for extended profile information
+    static class UserProfile {
+        String username;
+        String bio;
+        String profilePicture;
+        String location;
+        String website;
+        String phoneNumber;
+        
+        public UserProfile(String username) {
+            this.username = username;
+            this.bio = "";
+            this.profilePicture = "";
+            this.location = "";
+            this.website = "";
+            this.phoneNumber = "";
+        }
+    }
+    
+    // UserSettings class for user preferences
+    static class UserSettings {
+        final AtomicLong version = new AtomicLong(); // Bumped after each update; served as the ETag
+        String username;
+        boolean notifications;
+        boolean soundEnabled;
+        String theme;
+        String language;
+        boolean compactMode;
+        boolean readReceipts;
+        int sessionTimeout;
+        // Additional functional settings
+        boolean autoRefresh;
+        int refreshInterval; // in milliseconds
+        boolean showTimestamps;
+        boolean showTypingIndicators;
+        int maxMessagesDisplay;
+        
+        public UserSettings(String username) {
+            this.username = username;
+            this.notifications = true;
+            this.soundEnabled = true;
+            this.theme = "auto";
+            this.language = "english";
+            this.compactMode = false;
+            this.readReceipts = true;
+            this.sessionTimeout = 60;
+            // Initialize new functional settings
+            this.autoRefresh = true;
+            this.refreshInterval = 1000; // 1 second
+            this.showTimestamps = true;
+            this.showTypingIndicators = true;
+            this.maxMessagesDisplay = 100;
+        }
+    }
+    
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    // Request execution model, chosen at startup with -Dalpha.executor:
+    //   virtual    - one virtual thread per request (default; needs Java 21+, otherwise falls back to pool)
+    //   pool       - bounded platform pool sized by -Dalpha.executor.threads, queue by -Dalpha.executor.queue
+    //   dispatcher - everything on the HttpServer dispatcher thread (the old behaviour)
+    static Executor createHttpExecutor() {
+        String mode = System.getProperty("alpha.executor", "virtual");
+        if ("dispatcher".equals(mode)) {
+            return null;
+        }
+        if ("virtual".equals(mode)) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21+, using a bounded thread pool");
+            }
+        }
+        
+        int threads = Integer.getInteger("alpha.executor.threads", Runtime.getRuntime().availableProcessors() * 4);
+        int queueDepth = Integer.getInteger("alpha.executor.queue", 1000);
+        AtomicInteger count = new AtomicInteger();
+        // When the queue is full the dispatcher runs the request itself, which stops it accepting more
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueDepth),
+            runnable -> new Thread(runnable, "http-worker-" + count.incrementAndGet()),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+    
+    public static void main(String[] args) throws IOException {
+        // Check if ngrok URL is provided as argument
+        if (args.length > 0) {
+            baseUrl = args[0];
+            System.out.println("🌐 Using ngrok URL: " + baseUrl);
+        }
+        
+        // Small JSON responses otherwise wait on Nagle's algorithm and the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        
+        // Retention: each session keeps its last alpha.hot.messages (or alpha.hot.minutes) on heap, the rest on disk
+        long hotMessages = Long.getLong("alpha.hot.messages", 10000);
+        if (hotMessages > 0) {
+            ColdStore.open(new File(System.getProperty("alpha.data.dir", "data"), "cold"), hotMessages,
+                Long.getLong("alpha.hot.minutes", 0), Integer.getInteger("alpha.cold.cacheSegments", 64));
+        }
+        
+        // Persistence: -Dalpha.wal=sync (default) | async | off, stored under -Dalpha.data.dir (default "data")
+        String walMode = System.getProperty("alpha.wal", "sync");
+        if (!"off".equals(walMode)) {
+            WriteAheadLog.open(new File(System.getProperty("alpha.data.dir", "data")),
+                Long.getLong("alpha.wal.commitMicros", 1000),
+                Integer.getInteger("alpha.wal.commitBytes", 256 * 1024),
+                !"async".equals(walMode));
+            SnapshotStore.schedule(Long.getLong("alpha.snapshot.interval", 300),
+                Long.getLong("alpha.snapshot.walBytes", 64L * 1024 * 1024));
+        }
+        
+        if (hotMessages > 0) {
+            ColdStore.start();
+        }
+        
+        HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", 8082), 0);
+        
+        server.createContext("/", new MainHandler()).getFilters().add(Metrics.FILTER);
+        server.createContext("/qr/", new QRHandler()).getFilters().add(Metrics.FILTER);
+        server.createContext("/static/", new StaticHandler()).getFilters().add(Metrics.FILTER);
+        server.createContext("/api/", new ApiHandler()).getFilters().add(Metrics.FILTER);
+        server.createContext("/api/stream/", new StreamHandler()).getFilters().add(Metrics.FILTER);
+        httpExecutor = createHttpExecutor();
+        server.setExecutor(httpExecutor);
+        server.start();
+        
+        // Optional WebSocket side-listener: -Dalpha.ws.port=8083 [-Dalpha.ws.threads=N]
+        String wsPort = System.getProperty("alpha.ws.port");
+        if (wsPort != null) {
+            int threads = Integer.getInteger("alpha.ws.threads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+            new WebSocketServer(Integer.parseInt(wsPort), threads).start();
+            webSocketPort = Integer.parseInt(wsPort);
+            System.out.println("WebSocket listener on port " + webSocketPort);
+        }
+        
+        System.out.println("Request executor: " + (httpExecutor == null ? "dispatcher thread" : httpExecutor.getClass().getSimpleName()));
+        System.out.println("http://localhost:8082");
+        System.out.println("http://10.0.0.95:8082");
+        System.out.println("Metrics: http://localhost:8082/api/metrics");
+        if (args.length > 0) {
+            System.out.println(baseUrl);
+        }
+    }
+    
+    // Enhanced API Handler with comprehensive backend functionality
+    static class ApiHandler implements HttpHandler {
+        private static final int MAX_FETCH_LIMIT = 500; // Max messages per incremental fetch
+        private static final long DEFAULT_WAIT_MILLIS = 25000; // Long-poll timeout when none is given
+        private static final long MAX_WAIT_MILLIS = 60000;
+        private static final int MAX_BATCH_MESSAGES = 500;
+        private static final byte[] SUCCESS_JSON = "{\"success\":true}".getBytes(StandardCharsets.UTF_8);
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            
+            try {
+                if (path.startsWith("/api/messages/") && path.endsWith("/wait")) {
+                    handleMessageWait(exchange, path, method);
+                } else if (path.startsWith("/api/messages/") && path.endsWith("/batch")) {
+                    handleMessageBatch(exchange, path, method);
+                } else if (path.startsWith("/api/messages/")) {
+                    handleMessages(exchange, path, method);
+                } else if (path.startsWith("/api/reactions/")) {
+                    handleReactions(exchange, path, method);
+                } else if (path.startsWith("/api/typing/")) {
+                    handleTyping(exchange, path, method);
+                } else if (path.startsWith("/api/search/")) {
+                    handleSearch(exchange, path, method);
+                } else if (path.startsWith("/api/edit/")) {
+                    handleMessageEdit(exchange, path, method);
+                } else if (path.startsWith("/api/delete/")) {
+                    handleMessageDelete(exchange, path, method);
+                } else if (path.startsWith("/api/profile/")) {
+                    handleProfile(exchange, path, method);
+                } else if (path.startsWith("/api/settings/")) {
+                    handleSettings(exchange, path, method);
+                } else if (path.startsWith("/api/user/")) {
+                    handleUser(exchange, path, method);
+                } else if (path.equals("/api/metrics")) {
+                    handleMetrics(exchange, method);
+                } else {
+                    sendError(exchange, 404, "API endpoint not found");
+                }
+            } catch (FormData.TooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (WriteAheadLog.FailedException e) {
+                sendError(exchange, 503, "Storage unavailable");
+            }
+        }
+        
+        private void handleMessages(HttpExchange exchange, String path, String method) throws IOException {
+            String sessionId = path.substring(14); // Remove "/api/messages/"
+            
+            if ("GET".equals(method)) {
+                // Get messages for session
+                SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+                
+                FormData query = FormData.query(exchange);
+                String sinceParam = query.get("since");
+                String limitParam = query.get("limit");
+                
+                // Read before the messages, so a change racing this response leaves the ETag stale rather than the body
+                if (notModified(exchange, etag(log.version()))) return;
+                
+                if (sinceParam == null && limitParam == null) {
+                    // Legacy full-history response: plain JSON array
+                    JsonWriter json = JsonWriter.acquire();
+                    json.beginArray();
+                    writeMessagesJson(json, log.range(0, Integer.MAX_VALUE));
+                    json.endArray();
+                    sendResponse(exchange, json, 200);
+                    return;
+                }
+                
+                // Incremental fetch: only messages with seq > since, up to limit
+                long since = parseLong(sinceParam, 0);
+                int limit = parseLimit(limitParam);
+                sendResponse(exchange, buildDeltaJson(log, since, limit), 200);
+                
+            } else if ("POST".equals(method)) {
+                // Send message
+                FormData body = FormData.read(exchange);
+                String content = body.get("content");
+                String senderDevice = body.get("senderDevice");
+                
+                if (content != null && senderDevice != null) {
+                    if (rateLimited(exchange, RateLimiter.SENDS.acquire(sessionId, body.get("username")))) return;
+                    Message msg = postMessage(sessionId, content, senderDevice,
+                        body.get("username"), body.get("replyToId"));
+                    WriteAheadLog.awaitDurable();
+                    JsonWriter json = JsonWriter.acquire();
+                    json.beginObject().name("success").value(true).name("id").value(msg.id).name("seq").value(msg.seq).endObject();
+                    sendResponse(exchange, json, 200);
+                } else {
+                    sendError(exchange, 400, "Missing content or senderDevice");
+                }
+            }
+        }
+        
+        // Appends a message to the session and notifies every live transport; shared by HTTP and WebSocket
+        static Message postMessage(String sessionId, String content, String senderDevice, String msgUsername, String replyToId) {
+            SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+            
+            Message msg;
+            if (replyToId != null && !replyToId.isEmpty()) {
+                // This is a reply message
+                Message replyToMessage = MessageSearch.findMessageById(sessionId, replyToId);
+                if (replyToMessage != null) {
+                    msg = new Message(content, senderDevice, senderDevice, msgUsername, 
+                                    replyToId, replyToMessage.content, replyToMessage.username);
+                } else {
+                    msg = new Message(content, senderDevice, senderDevice, msgUsername);
+                }
+            } else {
+                msg = new Message(content, senderDevice, senderDevice, msgUsername);
+            }
+            
+            synchronized (log) {
+                WriteAheadLog.checkWritable();
+                log.append(msg);
+                WriteAheadLog.logMessage(sessionId, msg);
+                // Encoding here also warms the cache for the polls this append is about to wake
+                SessionEventBus.publish(sessionId, "message", msg.seq, msg.toJsonBytes());
+            }
+            LongPollRegistry.wake(sessionId);
+            Metrics.messagesPosted.increment();
+            
+            // Update user activity if we can identify the user
+            if (msgUsername != null && users.containsKey(msgUsername)) {
+                users.get(msgUsername).totalMessages++;
+                users.get(msgUsername).updateActivity(); // After the count, so the new version covers it
+            }
+            return msg;
+        }
+        
+        // Appends a batch as one unit: one version bump, one log record and one wake-up, however many messages
+        static void postMessages(String sessionId, List<Message> batch) {
+            SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+            synchronized (log) {
+                WriteAheadLog.checkWritable();
+                log.appendAll(batch);
+                WriteAheadLog.logMessages(sessionId, batch);
+                for (Message msg : batch) {
+                    SessionEventBus.publish(sessionId, "message", msg.seq, msg.toJsonBytes());
+                }
+            }
+            LongPollRegistry.wake(sessionId);
+            Metrics.messagesPosted.add(batch.size());
+            
+            Set<User> senders = new HashSet<>();
+            for (Message msg : batch) {
+                User user = msg.username != null ? users.get(msg.username) : null;
+                if (user != null) {
+                    user.totalMessages++;
+                    senders.add(user);
+                }
+            }
+            for (User user : senders) {
+                user.updateActivity();
+            }
+        }
+        
+        // Body: [{"content":...,"senderDevice":...,"username":...,"replyToId":...|"replyToIndex":N}, ...]
+        @SuppressWarnings("unchecked")
+        private void handleMessageBatch(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"POST".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String sessionId = path.substring(14, path.length() - 6); // Between "/api/messages/" and "/batch"
+            
+            List<Object> items;
+            try {
+                Object parsed = JsonParser.parse(new String(FormData.readBody(exchange), StandardCharsets.UTF_8));
+                if (!(parsed instanceof List)) throw new IllegalArgumentException("Expected an array");
+                items = (List<Object>) parsed;
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, "Invalid JSON: " + e.getMessage());
+                return;
+            }
+            if (items.isEmpty() || items.size() > MAX_BATCH_MESSAGES) {
+                sendError(exchange, 400, "A batch holds 1 to " + MAX_BATCH_MESSAGES + " messages");
+                return;
+            }
+            
+            // Everything is validated before anything is appended, so a bad entry rejects the whole batch
+            List<Message> batch = new ArrayList<>(items.size());
+            Map<String, Integer> permitsByUser = new HashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                Map<String, Object> fields = items.get(i) instanceof Map ? (Map<String, Object>) items.get(i) : null;
+                String content = fields != null ? JsonParser.stringField(fields, "content") : null;
+                String senderDevice = fields != null ? JsonParser.stringField(fields, "senderDevice") : null;
+                if (content == null || senderDevice == null) {
+                    sendError(exchange, 400, "Message " + i + ": missing content or senderDevice");
+                    return;
+                }
+                String msgUsername = JsonParser.stringField(fields, "username");
+                if (msgUsername != null) permitsByUser.merge(msgUsername, 1, Integer::sum);
+                
+                // A reply may point at an earlier message of the same batch by its index
+                Message replyTo = null;
+                Object replyToIndex = fields.get("replyToIndex");
+                if (replyToIndex instanceof Double) {
+                    double index = (Double) replyToIndex;
+                    if (index < 0 || index >= i || index != Math.floor(index)) {
+                        sendError(exchange, 400, "Message " + i + ": replyToIndex must name an earlier message");
+                        return;
+                    }
+                    replyTo = batch.get((int) index);
+                } else {
+                    String replyToId = JsonParser.stringField(fields, "replyToId");
+                    if (replyToId != null && !replyToId.isEmpty()) {
+                        replyTo = MessageSearch.findMessageById(sessionId, replyToId);
+                    }
+                }
+                batch.add(replyTo != null
+                    ? new Message(content, senderDevice, senderDevice, msgUsername, replyTo.id, replyTo.content, replyTo.username)
+                    : new Message(content, senderDevice, senderDevice, msgUsername));
+            }
+            
+            if (rateLimited(exchange, RateLimiter.SENDS.acquire(sessionId, permitsByUser, batch.size()))) return;
+            postMessages(sessionId, batch);
+            WriteAheadLog.awaitDurable();
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("success").value(true).name("messages").beginArray();
+            for (Message msg : batch) {
+                json.beginObject().name("id").value(msg.id).name("seq").value(msg.seq).endObject();
+            }
+            json.endArray().endObject();
+            sendResponse(exchange, json, 200);
+        }
+        
+        private void handleMessageWait(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"GET".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            String sessionId = path.substring(14, path.length() - 5); // Strip "/api/messages/" and "/wait"
+            SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+            
+            FormData query = FormData.query(exchange);
+            long since = parseLong(query.get("since"), 0);
+            int limit = parseLimit(query.get("limit"));
+            long timeoutMillis = parseTimeout(query.get("timeout"));
+            
+            // Park the exchange; it is answered by whoever appends next, or by the timeout
+            LongPollRegistry.park(sessionId, timeoutMillis,
+                () -> log.size() > since,
+                () -> {
+                    (log.size() > since ? Metrics.longPollHits : Metrics.longPollMisses).increment();
+                    try {
+                        sendResponse(exchange, buildDeltaJson(log, since, limit), 200);
+                    } catch (IOException e) {
+                        exchange.close(); // Client went away while parked
+                    }
+                });
+        }
+        
+        // Stitches the per-message cached JSON together, so a poll encodes only the envelope
+        JsonWriter buildDeltaJson(SessionLog log, long since, int limit) {
+            List<Message> delta = log.range(since, limit);
+            long highWaterMark = log.size(); // Read after the range so it is never behind lastSeq
+            long lastSeq = delta.isEmpty() ? Math.max(Math.min(since, highWaterMark), 0) : delta.get(delta.size() - 1).seq;
+            
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("messages").beginArray();
+            writeMessagesJson(json, delta);
+            json.endArray();
+            json.name("lastSeq").value(lastSeq);
+            json.name("highWaterMark").value(highWaterMark);
+            json.name("hasMore").value(lastSeq < highWaterMark);
+            return json.endObject();
+        }
+        
+        static void writeMessagesJson(JsonWriter json, List<Message> messages) {
+            for (Message msg : messages) {
+                if (msg.isDeleted) continue; // Skip deleted messages in list view
+                json.rawValue(msg.toJsonBytes());
+            }
+        }
+        
+        static void writeMessageJson(JsonWriter json, Message msg) {
+            json.beginObject();
+            json.name("id").value(msg.id);
+            json.name("seq").value(msg.seq);
+            json.name("content").value(msg.content);
+            json.name("sender").value(msg.sender);
+            json.name("username").value(msg.username);
+            json.name("deviceType").value(msg.deviceType);
+            json.name("timestamp").value(msg.timestamp);
+            json.name("isEdited").value(msg.isEdited);
+            json.name("isDeleted").value(msg.isDeleted);
+            
+            // Reply information
+            if (msg.replyToId != null) {
+                json.name("replyToId").value(msg.replyToId);
+                json.name("replyToContent").value(msg.replyToContent != null ? msg.replyToContent : "");
+                json.name("replyToUsername").value(msg.replyToUsername != null ? msg.replyToUsername : "");
+            } else {
+                json.name("replyToId").nullValue();
+                json.name("replyToContent").nullValue();
+                json.name("replyToUsername").nullValue();
+            }
+            
+            // Reactions
+            json.name("reactions");
+            writeReactionsJson(json, msg);
+            json.endObject();
+        }
+        
+        static void writeReactionsJson(JsonWriter json, Message msg) {
+            json.beginObject();
+            for (Map.Entry<String, Message.ReactionSet> reaction : msg.reactions.entrySet()) {
+                long count = reaction.getValue().count.sum();
+                if (count > 0) json.name(reaction.getKey()).value(count); // Emptied sets stay until the message goes
+            }
+            json.endObject();
+        }
+        
+        private void handleProfile(HttpExchange exchange, String path, String method) throws IOException {
+            String username = path.substring(13); // Remove "/api/profile/"
+            
+            if ("GET".equals(method)) {
+                User user = users.get(username);
+                UserProfile profile = profiles.get(username);
+                
+                if (user == null) {
+                    sendError(exchange, 404, "User not found");
+                    return;
+                }
+                
+                if (profile == null) {
+                    profile = new UserProfile(username);
+                    profiles.put(username, profile);
+                }
+                
+                // Profile edits always end in updateActivity, so the user's version covers the profile too
+                if (notModified(exchange, etag(user.version.get()))) return;
+                
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject();
+                json.name("username").value(user.username);
+                json.name("displayName").value(user.displayName);
+                json.name("email").value(user.email != null ? user.email : "");
+                json.name("bio").value(profile.bio);
+                json.name("profilePicture").value(profile.profilePicture);
+                json.name("location").value(profile.location);
+                json.name("website").value(profile.website);
+                json.name("phoneNumber").value(profile.phoneNumber);
+                json.name("createdAt").value(user.createdAt);
+                json.name("lastActive").value(user.lastActive);
+                json.name("totalMessages").value(user.totalMessages);
+                json.name("totalSessions").value(user.totalSessions);
+                json.endObject();
+                
+                sendResponse(exchange, json, 200);
+                
+            } else if ("POST".equals(method)) {
+                FormData body = FormData.read(exchange);
+                User user = users.get(username);
+                UserProfile profile = profiles.get(username);
+                
+                if (user == null) {
+                    sendError(exchange, 404, "User not found");
+                    return;
+                }
+                WriteAheadLog.checkWritable();
+                
+                if (profile == null) {
+                    profile = new UserProfile(username);
+                    profiles.put(username, profile);
+                }
+                
+                // Update profile fields
+                String displayName = body.get("displayName");
+                if (displayName != null) user.displayName = displayName;
+                
+                String email = body.get("email");
+                if (email != null) user.email = email;
+                
+                String bio = body.get("bio");
+                if (bio != null) profile.bio = bio;
+                
+                String profilePicture = body.get("profilePicture");
+                if (profilePicture != null) profile.profilePicture = profilePicture;
+                
+                String location = body.get("location");
+                if (location != null) profile.location = location;
+                
+                String website = body.get("website");
+                if (website != null) profile.website = website;
+                
+                String phoneNumber = body.get("phoneNumber");
+                if (phoneNumber != null) profile.phoneNumber = phoneNumber;
+                
+                user.updateActivity();
+                WriteAheadLog.logProfile(user, profile);
+                WriteAheadLog.awaitDurable();
+                sendSuccess(exchange, "Profile updated successfully");
+            }
+        }
+        
+        private void handleSettings(HttpExchange exchange, String path, String method) throws IOException {
+            String username = path.substring(14); // Remove "/api/settings/"
+            
+            if ("GET".equals(method)) {
+                UserSettings userSettings = settings.get(username);
+                if (userSettings == null) {
+                    userSettings = new UserSettings(username);
+                    settings.put(username, userSettings);
+                }
+                
+                if (notModified(exchange, etag(userSettings.version.get()))) return;
+                
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject();
+                json.name("username").value(userSettings.username);
+                json.name("notifications").value(userSettings.notifications);
+                json.name("soundEnabled").value(userSettings.soundEnabled);
+                json.name("theme").value(userSettings.theme);
+                json.name("language").value(userSettings.language);
+                json.name("compactMode").value(userSettings.compactMode);
+                json.name("readReceipts").value(userSettings.readReceipts);
+                json.name("sessionTimeout").value(userSettings.sessionTimeout);
+                json.endObject();
+                
+                sendResponse(exchange, json, 200);
+                
+            } else if ("POST".equals(method)) {
+                FormData body = FormData.read(exchange);
+                WriteAheadLog.checkWritable();
+                UserSettings userSettings = settings.get(username);
+                
+                if (userSettings == null) {
+                    userSettings = new UserSettings(username);
+                    settings.put(username, userSettings);
+                }
+                
+                // Update settings
+                String notifications = body.get("notifications");
+                if (notifications != null) userSettings.notifications = "true".equals(notifications);
+                
+                String soundEnabled = body.get("soundEnabled");
+                if (soundEnabled != null) userSettings.soundEnabled = "true".equals(soundEnabled);
+                
+                String theme = body.get("theme");
+                if (theme != null) userSettings.theme = theme;
+                
+                String language = body.get("language");
+                if (language != null) userSettings.language = language;
+                
+                String compactMode = body.get("compactMode");
+                if (compactMode != null) userSettings.compactMode = "true".equals(compactMode);
+                
+                String readReceipts = body.get("readReceipts");
+                if (readReceipts != null) userSettings.readReceipts = "true".equals(readReceipts);
+                
+                String sessionTimeout = body.get("sessionTimeout");
+                if (sessionTimeout != null) {
+                    try {
+                        userSettings.sessionTimeout = Integer.parseInt(sessionTimeout);
+                    } catch (NumberFormatException e) {
+                        // Keep default value
+                    }
+                }
+                
+                userSettings.version.incrementAndGet();
+                WriteAheadLog.logSettings(userSettings);
+                WriteAheadLog.awaitDurable();
+                sendSuccess(exchange, "Settings updated successfully");
+            }
+        }
+        
+        private void handleUser(HttpExchange exchange, String path, String method) throws IOException {
+            String action = path.substring(10); // Remove "/api/user/"
+            
+            if ("stats".equals(action) && "GET".equals(method)) {
+                FormData query = FormData.query(exchange);
+                String username = query.get("username");
+                
+                if (username == null) {
+                    sendError(exchange, 400, "Username required");
+                    return;
+                }
+                
+                User user = users.get(username);
+                if (user == null) {
+                    sendError(exchange, 404, "User not found");
+                    return;
+                }
+                
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject();
+                json.name("username").value(user.username);
+                json.name("displayName").value(user.displayName);
+                json.name("totalMessages").value(user.totalMessages);
+                json.name("totalSessions").value(user.totalSessions);
+                json.name("createdAt").value(user.createdAt);
+                json.name("lastActive").value(user.lastActive);
+                json.endObject();
+                
+                sendResponse(exchange, json, 200);
+            }
+        }
+        
+        // Advanced chat feature handlers
+        private void handleReactions(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"POST".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            String[] pathParts = path.split("/");
+            if (pathParts.length < 5) {
+                sendError(exchange, 400, "Invalid path");
+                return;
+            }
+            
+            String sessionId = pathParts[3];
+            String messageId = pathParts[4];
+            
+            FormData body = FormData.read(exchange);
+            String emoji = body.get("emoji");
+            String action = body.get("action");
+            
+            if (emoji == null || action == null) {
+                sendError(exchange, 400, "Missing emoji or action");
+                return;
+            }
+            
+            Message message = react(sessionId, messageId, emoji, action, body.get("username"));
+            if (message == null) {
+                sendError(exchange, 404, "Message not found");
+                return;
+            }
+            WriteAheadLog.awaitDurable();
+            
+            sendResponse(exchange, SUCCESS_JSON, 200);
+        }
+        
+        // Idempotent per user: adding a reaction the user already has, or removing one they don't, changes nothing.
+        // Without a username a reaction is only counted, so callers that never send one do not share an identity.
+        static Message react(String sessionId, String messageId, String emoji, String action, String username) {
+            Message message = MessageSearch.findMessageById(sessionId, messageId);
+            if (message == null) return null;
+            if (!"add".equals(action) && !"remove".equals(action)) return message;
+            
+            boolean present = "add".equals(action);
+            boolean changed = false;
+            if (username != null) {
+                changed = setReaction(sessionId, message, emoji, username, present);
+            } else {
+                String standIn;
+                while (!changed && (standIn = message.standIn(emoji, present)) != null) {
+                    changed = setReaction(sessionId, message, emoji, standIn, present); // Retries if another request took it
+                }
+            }
+            if (changed) ReactionBatcher.changed(sessionId, message);
+            return message;
+        }
+        
+        // Changed, then logged, under the message lock like edits and deletes, so the log replays changes in the order they applied
+        private static boolean setReaction(String sessionId, Message message, String emoji, String user, boolean present) {
+            synchronized (message) {
+                WriteAheadLog.checkWritable();
+                if (!message.setReaction(emoji, user, present)) return false;
+                WriteAheadLog.logReaction(sessionId, message, emoji, user, present);
+                return true;
+            }
+        }
+        
+        private void handleTyping(HttpExchange exchange, String path, String method) throws IOException {
+            String sessionId = path.substring(12); // Remove "/api/typing/"
+            
+            if ("GET".equals(method)) {
+                // Cheap to poll: unchanged typing state is a bodyless 304
+                if (notModified(exchange, etag(TypingRegistry.version(sessionId)))) return;
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject().name("users");
+                TypingRegistry.writeUsers(json, sessionId);
+                json.endObject();
+                sendResponse(exchange, json, 200);
+                return;
+            }
+            if (!"POST".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            FormData body = FormData.read(exchange);
+            String username = body.get("username");
+            String action = body.get("action");
+            
+            if (username == null || action == null) {
+                sendError(exchange, 400, "Missing username or action");
+                return;
+            }
+            if (rateLimited(exchange, RateLimiter.TYPING.acquire(sessionId, username))) return;
+            
+            updateTyping(sessionId, username, action);
+            
+            sendResponse(exchange, SUCCESS_JSON, 200);
+        }
+        
+        static void updateTyping(String sessionId, String username, String action) {
+            if ("start".equals(action)) {
+                TypingRegistry.start(sessionId, username);
+            } else if ("stop".equals(action)) {
+                TypingRegistry.stop(sessionId, username);
+            }
+        }
+        
+        private void handleSearch(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"GET".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            String sessionId = path.substring(12);
+            FormData query = FormData.query(exchange);
+            String searchTerm = query.get("q");
+            
+            if (searchTerm == null || searchTerm.trim().isEmpty()) {
+                JsonWriter json = JsonWriter.acquire();
+                json.beginObject().name("results").beginArray().endArray().endObject();
+                sendResponse(exchange, json, 200);
+                return;
+            }
+            
+            if (rateLimited(exchange, RateLimiter.SEARCHES.acquire(sessionId, query.get("username")))) return;
+            
+            long before = parseLong(query.get("before"), Long.MAX_VALUE);
+            int limit = (int) Math.min(Math.max(parseLong(query.get("limit"), SearchIndex.DEFAULT_LIMIT), 1), SearchIndex.MAX_LIMIT);
+            
+            // Fetch one extra to know whether another page exists
+            List<Message> results = MessageSearch.searchMessages(sessionId, searchTerm, before, limit + 1);
+            boolean hasMore = results.size() > limit;
+            if (hasMore) results = results.subList(0, limit);
+            
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("results").beginArray();
+            for (Message msg : results) {
+                json.beginObject();
+                json.name("id").value(msg.id);
+                json.name("seq").value(msg.seq);
+                json.name("content").value(msg.content);
+                json.name("username").value(msg.username);
+                json.name("timestamp").value(msg.timestamp);
+                json.endObject();
+            }
+            json.endArray().name("nextBefore");
+            if (hasMore) {
+                json.value(results.get(results.size() - 1).seq);
+            } else {
+                json.nullValue();
+            }
+            json.endObject();
+            
+            sendResponse(exchange, json, 200);
+        }
+        
+        private void handleMessageEdit(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"POST".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            String[] pathParts = path.split("/");
+            if (pathParts.length < 5) {
+                sendError(exchange, 400, "Invalid path");
+                return;
+            }
+            
+            String sessionId = pathParts[3];
+            String messageId = pathParts[4];
+            
+            FormData body = FormData.read(exchange);
+            String newContent = body.get("content");
+            String username = body.get("username");
+            
+            if (newContent == null || username == null) {
+                sendError(exchange, 400, "Missing content or username");
+                return;
+            }
+            
+            Message message = MessageSearch.findMessageById(sessionId, messageId);
+            if (message == null) {
+                sendError(exchange, 404, "Message not found");
+                return;
+            }
+            
+            if (!message.username.equals(username)) {
+                sendError(exchange, 403, "Unauthorized");
+                return;
+            }
+            
+            synchronized (message) {
+                // Logged under the message lock so a racing edit and delete replay in the order they applied
+                WriteAheadLog.checkWritable();
+                sessions.get(sessionId).edit(message, newContent);
+                WriteAheadLog.logEdit(sessionId, message);
+            }
+            SessionEventBus.publish(sessionId, "edit", 0, message.toJsonBytes());
+            WriteAheadLog.awaitDurable();
+            sendResponse(exchange, SUCCESS_JSON, 200);
+        }
+        
+        private void handleMessageDelete(HttpExchange exchange, String path, String method) throws IOException {
+            if (!"POST".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            
+            String[] pathParts = path.split("/");
+            if (pathParts.length < 5) {
+                sendError(exchange, 400, "Invalid path");
+                return;
+            }
+            
+            String sessionId = pathParts[3];
+            String messageId = pathParts[4];
+            
+            FormData body = FormData.read(exchange);
+            String username = body.get("username");
+            
+            if (username == null) {
+                sendError(exchange, 400, "Missing username");
+                return;
+            }
+            
+            Message message = MessageSearch.findMessageById(sessionId, messageId);
+            if (message == null) {
+                sendError(exchange, 404, "Message not found");
+                return;
+            }
+            
+            if (!message.username.equals(username)) {
+                sendError(exchange, 403, "Unauthorized");
+                return;
+            }
+            
+            synchronized (message) {
+                WriteAheadLog.checkWritable();
+                sessions.get(sessionId).delete(message);
+                WriteAheadLog.logDelete(sessionId, message);
+            }
+            SessionEventBus.publish(sessionId, "delete", 0,
+                ("{\"id\":\"" + message.id + "\",\"seq\":" + message.seq + "}").getBytes(StandardCharsets.UTF_8));
+            WriteAheadLog.awaitDurable();
+            sendResponse(exchange, SUCCESS_JSON, 200);
+        }
+        
+        // Helper methods
+        private int parseLimit(String value) {
+            return (int) Math.min(Math.max(parseLong(value, MAX_FETCH_LIMIT), 1), MAX_FETCH_LIMIT);
+        }
+        
+        private long parseTimeout(String value) {
+            // Accepts "25s", "2500ms" or a bare number of seconds
+            long millis;
+            if (value == null) {
+                millis = DEFAULT_WAIT_MILLIS;
+            } else if (value.endsWith("ms")) {
+                millis = parseLong(value.substring(0, value.length() - 2), DEFAULT_WAIT_MILLIS);
+            } else if (value.endsWith("s")) {
+                millis = parseLong(value.substring(0, value.length() - 1), DEFAULT_WAIT_MILLIS / 1000) * 1000;
+            } else {
+                millis = parseLong(value, DEFAULT_WAIT_MILLIS / 1000) * 1000;
+            }
+            return Math.min(Math.max(millis, 0), MAX_WAIT_MILLIS);
+        }
+        
+        private long parseLong(String value, long defaultValue) {
+            if (value == null) return defaultValue;
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        
+        // Version counters restart with the process, so the ETag carries the process start as well
+        private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+        
+        // Weak: the same version is served gzipped, deflated or plain, which are different bytes
+        private static String etag(long version) {
+            return "W/\"" + ETAG_EPOCH + "-" + version + "\"";
+        }
+        
+        // Sets the ETag and answers a matching If-None-Match with a bodyless 304; true when that happened
+        private boolean notModified(HttpExchange exchange, String etag) throws IOException {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache"); // Store, but revalidate every time
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch == null) return false;
+            
+            String opaque = etag.substring(2);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+                if (candidate.equals(opaque) || candidate.equals("*")) {
+                    exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    Metrics.notModified.increment();
+                    return true;
+                }
+            }
+            Metrics.modified.increment();
+            return false;
+        }
+        
+        private void handleMetrics(HttpExchange exchange, String method) throws IOException {
+            if (!"GET".equals(method)) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            Metrics.write(text);
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            Compression.send(exchange, 200, bytes, 0, bytes.length);
+        }
+        
+        // Answers 429 when the limiter asked the caller to wait
+        private boolean rateLimited(HttpExchange exchange, long waitNanos) throws IOException {
+            if (waitNanos <= 0) return false;
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(RateLimiter.retryAfterSeconds(waitNanos)));
+            sendError(exchange, 429, "Too many requests");
+            return true;
+        }
+        
+        private void sendError(HttpExchange exchange, int statusCode, String error) throws IOException {
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("error").value(error).endObject();
+            sendResponse(exchange, json, statusCode);
+        }
+        
+        private void sendSuccess(HttpExchange exchange, String message) throws IOException {
+            JsonWriter json = JsonWriter.acquire();
+            json.beginObject().name("success").value(true).name("message").value(message).endObject();
+            sendResponse(exchange, json, 200);
+        }
+        
+        // Writes the encoded buffer straight to the exchange, then hands it back to the pool
+        private void sendResponse(HttpExchange exchange, JsonWriter json, int statusCode) throws IOException {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                Compression.send(exchange, statusCode, json.buffer(), 0, json.size());
+            } finally {
+                json.release();
+            }
+        }
+        
+        private void sendResponse(HttpExchange exchange, byte[] responseBytes, int statusCode) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            Compression.send(exchange, statusCode, responseBytes, 0, responseBytes.length);
+        }
+    }
+    
+    // Server-Sent Events stream of a session's changes, resumable via Last-Event-ID
+    static class StreamHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if (!"GET".equals(exchange.getRequestMethod()) || path.length() <= 12) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            
+            String sessionId = path.substring(12); // Remove "/api/stream/"
+            SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+            
+            // EventSource sends Last-Event-ID on reconnect; first connects may pass ?since=
+            long since = 0;
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            String sinceParam = lastEventId != null ? lastEventId : FormData.query(exchange).get("since");
+            if (sinceParam != null) {
+                try {
+                    since = Math.max(Long.parseLong(sinceParam.trim()), 0);
+                } catch (NumberFormatException e) {
+                    // Replay from the start
+                }
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0); // Chunked
+            
+            EventStream stream = new EventStream(sessionId, exchange, since);
+            synchronized (log) {
+                // Appends publish under this lock, so the replay and the live tail cannot interleave
+                ByteArrayOutputStream replay = new ByteArrayOutputStream();
+                for (Message msg : log.range(since, Integer.MAX_VALUE)) {
+                    if (msg.isDeleted) continue;
+                    EventStream.appendFrame(replay, "message", msg.seq, msg.toJsonBytes());
+                }
+                if (replay.size() > 0) stream.enqueue(replay.toByteArray());
+                stream.lastSeq = log.size();
+                SessionEventBus.subscribe(sessionId, stream);
+            }
+            stream.start();
+        }
+    }
+    
+    // Optional RFC 6455 WebSocket listener on its own port, driven by a handful of NIO selector loops
+    static class WebSocketServer {
+        static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+        static final int MAX_HANDSHAKE_BYTES = 8192;
+        static final int MAX_FRAME_BYTES = 64 * 1024;
+        static final long MAX_OUTBOUND_BYTES = 1024 * 1024; // Slow consumers past this are dropped
+        static final long PAUSE_READ_BYTES = 256 * 1024; // Stop reading from clients that are not draining
+        static final int PAUSE_READ_EVENTS = 64; // Likewise for clients whose events are queued for a worker
+        static final long PING_SECONDS = 30;
+        
+        private final ServerSocketChannel serverChannel;
+        private final SelectorLoop[] loops;
+        private int nextLoop;
+        
+        WebSocketServer(int port, int threads) throws IOException {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress("0.0.0.0", port), 1024);
+            loops = new SelectorLoop[threads];
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new SelectorLoop(this);
+            }
+        }
+        
+        void start() throws IOException {
+            // The first loop also accepts and hands sockets out round-robin
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (int i = 0; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "websocket-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            scheduler.scheduleAtFixedRate(() -> {
+                for (SelectorLoop loop : loops) {
+                    loop.execute(loop::pingAll);
+                }
+            }, PING_SECONDS, PING_SECONDS, TimeUnit.SECONDS);
+        }
+        
+        void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectorLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        }
+    }
+    
+    // One selector thread; all socket I/O and interest changes happen here, other threads post tasks
+    static class SelectorLoop implements Runnable {
+        final WebSocketServer server;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(WebSocketServer.MAX_FRAME_BYTES + 14); // Shared by all sockets on this loop
+        
+        SelectorLoop(WebSocketServer server) throws IOException {
+            this.server = server;
+            this.selector = Selector.open();
+        }
+        
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new WebSocketConnection(this, channel, key));
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            server.accept();
+                            continue;
+                        }
+                        WebSocketConnection connection = (WebSocketConnection) key.attachment();
+                        if (key.isWritable()) connection.flush();
+                        if (key.isValid() && key.isReadable()) connection.read(readBuffer);
+                    }
+                } catch (Exception e) {
+                    System.err.println("WebSocket loop error: " + e);
+                }
+            }
+        }
+        
+        void pingAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof WebSocketConnection) {
+                    ((WebSocketConnection) key.attachment()).ping();
+                }
+            }
+        }
+        
+        static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+    
+    // Per-socket WebSocket state: handshake, frame decoding, outbound queue and session subscription
+    static class WebSocketConnection implements SessionEventBus.Subscriber {
+        final SelectorLoop loop;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicLong outboundBytes = new AtomicLong();
+        final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        final Queue<Runnable> work = new ConcurrentLinkedQueue<>(); // Decoded client events, run in order off the selector
+        final AtomicInteger workCount = new AtomicInteger();
+        final AtomicBoolean working = new AtomicBoolean(false);
+        ByteBuffer inbound; // Unconsumed bytes of a partial request or frame; null when empty
+        ByteArrayOutputStream fragments; // Text message being reassembled from continuation frames
+        boolean handshakeDone;
+        boolean closeAfterFlush;
+        boolean awaitingPong;
+        String sessionId;
+        volatile boolean closed;
+        volatile long lastSeq;
+        
+        WebSocketConnection(SelectorLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+        
+        void read(ByteBuffer readBuffer) {
+            readBuffer.clear();
+            if (inbound != null) readBuffer.put(inbound);
+            inbound = null;
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            
+            if (!handshakeDone) {
+                readHandshake(readBuffer);
+            }
+            while (handshakeDone && !closed && !closeAfterFlush && readFrame(readBuffer)) {
+                // Keep decoding complete frames
+            }
+            
+            if (closed) return;
+            if (readBuffer.hasRemaining()) {
+                if (!handshakeDone && readBuffer.remaining() >= WebSocketServer.MAX_HANDSHAKE_BYTES) {
+                    close();
+                    return;
+                }
+                inbound = ByteBuffer.allocate(readBuffer.remaining());
+                inbound.put(readBuffer).flip();
+            }
+            if (workCount.get() >= WebSocketServer.PAUSE_READ_EVENTS) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // The worker re-enables reads via flush()
+            }
+        }
+        
+        private void readHandshake(ByteBuffer buffer) {
+            int end = -1;
+            for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                    end = i + 4;
+                    break;
+                }
+            }
+            if (end < 0) return; // Wait for the rest of the request
+            
+            byte[] requestBytes = new byte[end - buffer.position()];
+            buffer.get(requestBytes);
+            String[] lines = new String(requestBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+            
+            String[] requestLine = lines[0].split(" ");
+            String webSocketKey = headers.get("sec-websocket-key");
+            if (requestLine.length < 2 || !"GET".equals(requestLine[0]) || !requestLine[1].startsWith("/ws/")
+                    || webSocketKey == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                sendRaw("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+                closeAfterFlush = true;
+                return;
+            }
+            
+            String target = requestLine[1].substring(4); // Remove "/ws/"
+            long since = 0;
+            int queryStart = target.indexOf('?');
+            if (queryStart >= 0) {
+                for (String pair : target.substring(queryStart + 1).split("&")) {
+                    if (pair.startsWith("since=")) {
+                        try {
+                            since = Math.max(Long.parseLong(pair.substring(6)), 0);
+                        } catch (NumberFormatException e) {
+                            // Replay from the start
+                        }
+                    }
+                }
+                target = target.substring(0, queryStart);
+            }
+            try {
+                sessionId = java.net.URLDecoder.decode(target, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                sessionId = target;
+            }
+            
+            String accept;
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                accept = Base64.getEncoder().encodeToString(
+                    sha1.digest((webSocketKey + WebSocketServer.ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            sendRaw("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n");
+            handshakeDone = true;
+            
+            long replayFrom = since;
+            dispatch(() -> subscribe(replayFrom));
+        }
+        
+        // Worker thread; replay may page cold segments in from disk
+        private void subscribe(long since) {
+            SessionLog log = sessions.computeIfAbsent(sessionId, k -> new SessionLog());
+            synchronized (log) {
+                // Same ordering guarantee as the SSE stream: replay, then subscribe, with appends locked out
+                ByteArrayOutputStream replay = new ByteArrayOutputStream();
+                for (Message msg : log.range(since, Integer.MAX_VALUE)) {
+                    if (msg.isDeleted) continue;
+                    byte[] frame = encodeEventFrame("message", msg.seq, msg.toJsonBytes());
+                    replay.write(frame, 0, frame.length);
+                }
+                if (replay.size() > 0) enqueue(ByteBuffer.wrap(replay.toByteArray()), true);
+                lastSeq = log.size();
+                SessionEventBus.subscribe(sessionId, this);
+            }
+        }
+        
+        // Decodes one frame if fully buffered; returns false when more bytes are needed
+        private boolean readFrame(ByteBuffer buffer) {
+            int start = buffer.position();
+            if (buffer.remaining() < 2) return false;
+            int b0 = buffer.get(start) & 0xFF;
+            int b1 = buffer.get(start + 1) & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            int headerLength = 2;
+            if (length == 126) {
+                if (buffer.remaining() < 4) return false;
+                length = buffer.getShort(start + 2) & 0xFFFF;
+                headerLength = 4;
+            } else if (length == 127) {
+                if (buffer.remaining() < 10) return false;
+                length = buffer.getLong(start + 2);
+                headerLength = 10;
+            }
+            
+            if (!masked) {
+                sendClose(1002); // Client frames must be masked
+                return false;
+            }
+            if (length < 0 || length > WebSocketServer.MAX_FRAME_BYTES) {
+                sendClose(1009);
+                return false;
+            }
+            if (buffer.remaining() < headerLength + 4 + length) return false;
+            
+            int maskStart = start + headerLength;
+            byte[] payload = new byte[(int) length];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (buffer.get(maskStart + 4 + i) ^ buffer.get(maskStart + (i & 3)));
+            }
+            buffer.position(maskStart + 4 + payload.length);
+            handleFrame(fin, opcode, payload);
+            return true;
+        }
+        
+        private void handleFrame(boolean fin, int opcode, byte[] payload) {
+            switch (opcode) {
+                case 0x0: // Continuation
+                case 0x1: // Text
+                    if (opcode == 0x1 && fragments != null) {
+                        sendClose(1002);
+                        return;
+                    }
+                    if (opcode == 0x0 && fragments == null) {
+                        sendClose(1002);
+                        return;
+                    }
+                    if (fin && fragments == null) {
+                        String text = new String(payload, StandardCharsets.UTF_8);
+                        dispatch(() -> onText(text));
+                        return;
+                    }
+                    if (fragments == null) fragments = new ByteArrayOutputStream();
+                    fragments.write(payload, 0, payload.length);
+                    if (fragments.size() > WebSocketServer.MAX_FRAME_BYTES) {
+                        sendClose(1009);
+                    } else if (fin) {
+                        String text = new String(fragments.toByteArray(), StandardCharsets.UTF_8);
+                        fragments = null;
+                        dispatch(() -> onText(text));
+                    }
+                    return;
+                case 0x8: // Close
+                    sendClose(1000);
+                    return;
+                case 0x9: // Ping
+                    enqueue(ByteBuffer.wrap(encodeFrame(0xA, payload)), true);
+                    return;
+                case 0xA: // Pong
+                    awaitingPong = false;
+                    return;
+                default:
+                    sendClose(1003); // Binary and reserved opcodes are not supported
+            }
+        }
+        
+        // Hands a task to the request executor; tasks for one connection run one at a time, in arrival order,
+        // so session locks, log writes and cold-segment reads never stall the selector thread
+        private void dispatch(Runnable task) {
+            workCount.incrementAndGet();
+            work.add(task);
+            if (working.compareAndSet(false, true)) {
+                (httpExecutor != null ? httpExecutor : responseWriters).execute(this::runWork);
+            }
+        }
+        
+        private void runWork() {
+            do {
+                Runnable task;
+                try {
+                    while ((task = work.poll()) != null) {
+                        try {
+                            if (!closed) task.run();
+                        } catch (WriteAheadLog.FailedException e) {
+                            sendText("{\"type\":\"error\",\"error\":\"Storage unavailable\"}");
+                        } catch (RuntimeException e) {
+                            System.err.println("WebSocket event failed: " + e);
+                            sendText("{\"type\":\"error\",\"error\":\"Internal error\"}");
+                        } finally {
+                            if (workCount.decrementAndGet() == WebSocketServer.PAUSE_READ_EVENTS - 1) {
+                                loop.execute(this::flush); // Resume reading if read() paused it
+                            }
+                        }
+                    }
+                } finally {
+                    working.set(false); // Even if an Error escaped, so the next event starts a new run
+                }
+                // Re-check in case a task arrived after the last poll but before working was cleared
+            } while (!work.isEmpty() && working.compareAndSet(false, true));
+        }
+        
+        // Worker thread. Client events mirror the HTTP API: {"type":"message"|"typing"|"reaction", ...same fields as the form posts}
+        @SuppressWarnings("unchecked")
+        private void onText(String text) {
+            Map<String, Object> event;
+            try {
+                Object parsed = JsonParser.parse(text);
+                if (!(parsed instanceof Map)) throw new IllegalArgumentException("Expected an object");
+                event = (Map<String, Object>) parsed;
+            } catch (IllegalArgumentException e) {
+                sendText("{\"type\":\"error\",\"error\":\"Invalid JSON\"}");
+                return;
+            }
+            
+            String type = JsonParser.stringField(event, "type");
+            if ("message".equals(type)) {
+                String content = JsonParser.stringField(event, "content");
+                String senderDevice = JsonParser.stringField(event, "senderDevice");
+                if (content == null || senderDevice == null) {
+                    sendText("{\"type\":\"error\",\"error\":\"Missing content or senderDevice\"}");
+                    return;
+                }
+                String username = JsonParser.stringField(event, "username");
+                long wait = RateLimiter.SENDS.acquire(sessionId, username);
+                if (wait > 0) {
+                    sendText("{\"type\":\"error\",\"error\":\"Too many requests\",\"retryAfter\":"
+                        + RateLimiter.retryAfterSeconds(wait) + "}");
+                    return;
+                }
+                Message msg = ApiHandler.postMessage(sessionId, content, senderDevice,
+                    username, JsonParser.stringField(event, "replyToId"));
+                WriteAheadLog.awaitDurable(); // Same guarantee as the HTTP POST: acked means on disk in sync mode
+                sendText("{\"type\":\"ack\",\"id\":\"" + msg.id + "\",\"seq\":" + msg.seq + "}");
+            } else if ("typing".equals(type)) {
+                String username = JsonParser.stringField(event, "username");
+                String action = JsonParser.stringField(event, "action");
+                // Typing events are advisory, so over-budget ones are dropped without a reply
+                if (username != null && action != null && RateLimiter.TYPING.acquire(sessionId, username) == 0) {
+                    ApiHandler.updateTyping(sessionId, username, action);
+                }
+            } else if ("reaction".equals(type)) {
+                String messageId = JsonParser.stringField(event, "messageId");
+                String emoji = JsonParser.stringField(event, "emoji");
+                String action = JsonParser.stringField(event, "action");
+                if (messageId == null || emoji == null || action == null
+                        || ApiHandler.react(sessionId, messageId, emoji, action, JsonParser.stringField(event, "username")) == null) {
+                    sendText("{\"type\":\"error\",\"error\":\"Invalid reaction\"}");
+                }
+            } else {
+                sendText("{\"type\":\"error\",\"error\":\"Unknown event type\"}");
+            }
+        }
+        
+        public void onEvent(String type, long seq, byte[] data) {
+            if (seq > 0) {
+                if (seq <= lastSeq) return; // Already replayed
+                lastSeq = seq;
+            }
+            enqueue(ByteBuffer.wrap(encodeEventFrame(type, seq, data)), false);
+        }
+        
+        // {"type":...,"seq":...,"data":<data>} as one text frame, with the encoded JSON copied in once
+        static byte[] encodeEventFrame(String type, long seq, byte[] data) {
+            byte[] prefix = ("{\"type\":\"" + type + "\"" + (seq > 0 ? ",\"seq\":" + seq : "") + ",\"data\":")
+                .getBytes(StandardCharsets.UTF_8);
+            int payloadLength = prefix.length + data.length + 1;
+            byte[] frame = new byte[headerLength(payloadLength) + payloadLength];
+            int offset = writeHeader(frame, 0x1, payloadLength);
+            System.arraycopy(prefix, 0, frame, offset, prefix.length);
+            System.arraycopy(data, 0, frame, offset + prefix.length, data.length);
+            frame[frame.length - 1] = '}';
+            return frame;
+        }
+        
+        void ping() {
+            if (!handshakeDone || awaitingPong) {
+                close(); // Never finished the handshake, or missed the last ping
+                return;
+            }
+            awaitingPong = true;
+            enqueue(ByteBuffer.wrap(encodeFrame(0x9, new byte[0])), true);
+        }
+        
+        private void sendText(String text) {
+            enqueue(ByteBuffer.wrap(encodeFrame(0x1, text.getBytes(StandardCharsets.UTF_8))), false);
+        }
+        
+        private void sendRaw(String text) {
+            enqueue(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)), true);
+        }
+        
+        private void sendClose(int status) {
+            if (closeAfterFlush) return;
+            enqueue(ByteBuffer.wrap(encodeFrame(0x8, new byte[] { (byte) (status >> 8), (byte) status })), true);
+            closeAfterFlush = true;
+        }
+        
+        // Safe from any thread; control frames bypass the slow-consumer limit
+        void enqueue(ByteBuffer frame, boolean control) {
+            if (closed) return;
+            long queued = outboundBytes.addAndGet(frame.remaining());
+            if (!control && queued > WebSocketServer.MAX_OUTBOUND_BYTES) {
+                loop.execute(this::close);
+                return;
+            }
+            outbound.add(frame);
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+        }
+        
+        // Selector thread only
+        void flush() {
+            if (closed) return;
+            try {
+                ByteBuffer frame;
+                while ((frame = outbound.peek()) != null) {
+                    int written = channel.write(frame);
+                    outboundBytes.addAndGet(-written);
+                    if (frame.hasRemaining()) break; // Socket buffer full; wait for OP_WRITE
+                    outbound.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            
+            if (outbound.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            int interest = outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            if (outboundBytes.get() < WebSocketServer.PAUSE_READ_BYTES && workCount.get() < WebSocketServer.PAUSE_READ_EVENTS
+                    && !closeAfterFlush) {
+                interest |= SelectionKey.OP_READ; // Backpressure: stop reading while we cannot write or keep up
+            }
+            key.interestOps(interest);
+        }
+        
+        // Selector thread only
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (sessionId != null) SessionEventBus.unsubscribe(sessionId, this);
+            outbound.clear();
+            key.cancel();
+            SelectorLoop.closeQuietly(channel);
+        }
+        
+        static byte[] encodeFrame(int opcode, byte[] payload) {
+            byte[] frame = new byte[headerLength(payload.length) + payload.length];
+            int offset = writeHeader(frame, opcode, payload.length);
+            System.arraycopy(payload, 0, frame, offset, payload.length);
+            return frame;
+        }
+        
+        private static int headerLength(int payloadLength) {
+            return payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+        }
+        
+        // Writes an unmasked final-fragment header at the start of frame; returns where the payload goes
+        private static int writeHeader(byte[] frame, int opcode, int payloadLength) {
+            int headerLength = headerLength(payloadLength);
+            frame[0] = (byte) (0x80 | opcode);
+            if (headerLength == 2) {
+                frame[1] = (byte) payloadLength;
+            } else if (headerLength == 4) {
+                frame[1] = 126;
+                frame[2] = (byte) (payloadLength >> 8);
+                frame[3] = (byte) payloadLength;
+            } else {
+                frame[1] = 127;
+                for (int i = 0; i < 8; i++) {
+                    frame[2 + i] = (byte) ((long) payloadLength >> (56 - 8 * i));
+                }
+            }
+            return headerLength;
+        }
+    }
+    
+    // Form bodies and query strings, split once on arrival; each value is percent-decoded on its first lookup
+    static final class FormData {
+        static final int MAX_BODY_BYTES = Integer.getInteger("alpha.form.maxBytes", 256 * 1024);
+        private static final FormData EMPTY = new FormData(new byte[0]);
+        
+        static class TooLargeException extends IOException {
+            private static final long serialVersionUID = 1L;
+            
+            TooLargeException() {
+                super("Request body exceeds " + MAX_BODY_BYTES + " bytes");
+            }
+        }
+        
+        private final byte[] source;
+        private String[] names = new String[8];
+        private int[] valueBounds = new int[16]; // Start and end offset of each value in source
+        private String[] values = new String[8]; // Decoded values, filled in by get
+        private int count;
+        
+        FormData(byte[] source) {
+            this.source = source;
+            int start = 0;
+            while (start < source.length) {
+                int end = start;
+                int equals = -1;
+                while (end < source.length && source[end] != '&') {
+                    if (equals < 0 && source[end] == '=') equals = end;
+                    end++;
+                }
+                if (equals > start) add(decode(start, equals), equals + 1, end); // Fields without '=' carry nothing
+                start = end + 1;
+            }
+        }
+        
+        static FormData read(HttpExchange exchange) throws IOException {
+            return new FormData(readBody(exchange));
+        }
+        
+        static FormData query(HttpExchange exchange) {
+            String raw = exchange.getRequestURI().getRawQuery();
+            return raw == null || raw.isEmpty() ? EMPTY : new FormData(raw.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        // The raw body, newlines and all, refusing anything past MAX_BODY_BYTES
+        static byte[] readBody(HttpExchange exchange) throws IOException {
+            long declared = -1;
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null) {
+                try {
+                    declared = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    // Read until the stream ends instead
+                }
+            }
+            if (declared > MAX_BODY_BYTES) throw new TooLargeException();
+            
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[declared >= 0 ? (int) declared : 1024];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    int next = in.read();
+                    if (next < 0) break;
+                    if (length >= MAX_BODY_BYTES) throw new TooLargeException();
+                    buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, 1024), MAX_BODY_BYTES));
+                    buffer[length++] = (byte) next;
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) break;
+                length += read;
+            }
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+        
+        // The first value given for the field, or null when it is absent
+        String get(String name) {
+            for (int i = 0; i < count; i++) {
+                if (names[i].equals(name)) {
+                    if (values[i] == null) values[i] = decode(valueBounds[2 * i], valueBounds[2 * i + 1]);
+                    return values[i];
+                }
+            }
+            return null;
+        }
+        
+        private void add(String name, int valueStart, int valueEnd) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+                valueBounds = Arrays.copyOf(valueBounds, count * 4);
+            }
+            names[count] = name;
+            valueBounds[2 * count] = valueStart;
+            valueBounds[2 * count + 1] = valueEnd;
+            count++;
+        }
+        
+        // '+' is a space and %XX a byte of UTF-8; a malformed escape is kept as written
+        private String decode(int start, int end) {
+            int i = start;
+            while (i < end && source[i] != '%' && source[i] != '+') i++;
+            if (i == end) return new String(source, start, end - start, StandardCharsets.UTF_8);
+            
+            byte[] decoded = new byte[end - start];
+            int length = i - start;
+            System.arraycopy(source, start, decoded, 0, length);
+            for (; i < end; i++) {
+                byte b = source[i];
+                if (b == '+') {
+                    b = ' ';
+                } else if (b == '%' && i + 2 < end && hex(i + 1) >= 0 && hex(i + 2) >= 0) {
+                    b = (byte) (hex(i + 1) << 4 | hex(i + 2));
+                    i += 2;
+                }
+                decoded[length++] = b;
+            }
+            return new String(decoded, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        private int hex(int index) {
+            return Character.digit(source[index], 16);
+        }
+    }
+    
+    // Minimal JSON reader for inbound payloads; yields Map, List, String, Double, Boolean or null
+    static class JsonParser {
+        private static final int MAX_DEPTH = 64; // Far deeper than any payload we accept; stops [[[[... overflowing the stack
+        
+        private final String text;
+        private int pos;
+        private int depth;
+        
+        private JsonParser(String text) {
+            this.text = text;
+        }
+        
+        public static Object parse(String text) {
+            JsonParser parser = new JsonParser(text);
+            Object value = parser.readValue();
+            parser.skipWhitespace();
+            if (parser.pos != text.length()) throw parser.error("Trailing characters");
+            return value;
+        }
+        
+        static String stringField(Map<String, Object> object, String name) {
+            Object value = object.get(name);
+            return value instanceof String ? (String) value : null;
+        }
+        
+        private Object readValue() {
+            skipWhitespace();
+            if (pos >= text.length()) throw error("Unexpected end of input");
+            char c = text.charAt(pos);
+            if (c == '{') return readObject();
+            if (c == '[') return readArray();
+            if (c == '"') return readString();
+            if (text.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+            if (text.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+            if (text.startsWith("null", pos)) { pos += 4; return null; }
+            return readNumber();
+        }
+        
+        private Map<String, Object> readObject() {
+            enter();
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++; // '{'
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                depth--;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw error("Expected a key");
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(name, readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    depth--;
+                    return object;
+                }
+            }
+        }
+        
+        private List<Object> readArray() {
+            enter();
+            List<Object> array = new ArrayList<>();
+            pos++; // '['
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                depth--;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    depth--;
+                    return array;
+                }
+            }
+        }
+        
+        private void enter() {
+            if (++depth > MAX_DEPTH) throw error("Nested too deeply");
+        }
+        
+        private String readString() {
+            pos++; // Opening quote
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (pos >= text.length()) throw error("Unterminated string");
+                char c = text.charAt(pos++);
+                if (c == '"') return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) throw error("Unterminated escape");
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) throw error("Bad unicode escape");
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default: value.append(escaped); // '"', '\\' and '/'
+                }
+            }
+        }
+        
+        private Double readNumber() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+            try {
+                return Double.valueOf(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("Unexpected character");
+            }
+        }
+        
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+        
+        private void expect(char c) {
+            if (peek() != c) throw error("Expected '" + c + "'");
+            pos++;
+        }
+        
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+        
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+    
+    // Streaming JSON writer over a pooled UTF-8 byte buffer; responses go straight from here to the exchange
+    static class JsonWriter {
+        private static final int INITIAL_CAPACITY = 4096;
+        private static final int MAX_POOLED_CAPACITY = 256 * 1024; // Larger buffers are left to the GC
+        private static final ArrayBlockingQueue<JsonWriter> POOL = new ArrayBlockingQueue<>(64);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        
+        private byte[] buf = new byte[INITIAL_CAPACITY];
+        private int count;
+        private int depth;
+        private long hasMember; // Bit per nesting level: set once the container at that depth has an entry
+        private boolean afterName;
+        
+        private JsonWriter() {
+        }
+        
+        public static JsonWriter acquire() {
+            JsonWriter writer = POOL.poll();
+            return writer != null ? writer : new JsonWriter();
+        }
+        
+        public void release() {
+            count = 0;
+            depth = 0;
+            hasMember = 0;
+            afterName = false;
+            if (buf.length <= MAX_POOLED_CAPACITY) POOL.offer(this);
+        }
+        
+        public JsonWriter beginObject() {
+            return open('{');
+        }
+        
+        public JsonWriter endObject() {
+            return close('}');
+        }
+        
+        public JsonWriter beginArray() {
+            return open('[');
+        }
+        
+        public JsonWriter endArray() {
+            return close(']');
+        }
+        
+        public JsonWriter name(String name) {
+            separate();
+            writeString(name);
+            writeByte(':');
+            afterName = true;
+            return this;
+        }
+        
+        public JsonWriter value(String value) {
+            if (value == null) return nullValue();
+            beforeValue();
+            writeString(value);
+            return this;
+        }
+        
+        public JsonWriter value(long value) {
+            beforeValue();
+            if (value == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return this;
+            }
+            if (value < 0) {
+                writeByte('-');
+                value = -value;
+            }
+            ensureCapacity(19);
+            int start = count;
+            do {
+                buf[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = count - 1; i < j; i++, j--) {
+                byte swap = buf[i];
+                buf[i] = buf[j];
+                buf[j] = swap;
+            }
+            return this;
+        }
+        
+        public JsonWriter value(boolean value) {
+            beforeValue();
+            writeAscii(value ? "true" : "false");
+            return this;
+        }
+        
+        public JsonWriter nullValue() {
+            beforeValue();
+            writeAscii("null");
+            return this;
+        }
+        
+        // Splices in an already-encoded JSON value, such as a message's cached bytes
+        public JsonWriter rawValue(byte[] json) {
+            beforeValue();
+            ensureCapacity(json.length);
+            System.arraycopy(json, 0, buf, count, json.length);
+            count += json.length;
+            return this;
+        }
+        
+        public int size() {
+            return count;
+        }
+        
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+        
+        // The backing array; valid up to size() until the writer is released
+        byte[] buffer() {
+            return buf;
+        }
+        
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+        
+        @Override
+        public String toString() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+        
+        private JsonWriter open(char bracket) {
+            beforeValue();
+            writeByte(bracket);
+            depth++;
+            hasMember &= ~(1L << (depth & 63));
+            return this;
+        }
+        
+        private JsonWriter close(char bracket) {
+            depth--;
+            writeByte(bracket);
+            return this;
+        }
+        
+        private void beforeValue() {
+            if (afterName) {
+                afterName = false;
+            } else if (depth > 0) {
+                separate();
+            }
+        }
+        
+        private void separate() {
+            long bit = 1L << (depth & 63);
+            if ((hasMember & bit) != 0) writeByte(',');
+            hasMember |= bit;
+        }
+        
+        // Escapes per RFC 8259, plus U+2028/U+2029 so the output is also safe to embed in a script
+        private void writeString(String value) {
+            ensureCapacity(value.length() + 2);
+            buf[count++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        writeByte('\\');
+                        writeByte(c);
+                    } else if (c >= 0x20) {
+                        writeByte(c);
+                    } else if (c == '\n') {
+                        writeAscii("\\n");
+                    } else if (c == '\r') {
+                        writeAscii("\\r");
+                    } else if (c == '\t') {
+                        writeAscii("\\t");
+                    } else {
+                        writeUnicodeEscape(c);
+                    }
+                } else if (c < 0x800) {
+                    ensureCapacity(2);
+                    buf[count++] = (byte) (0xC0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (c == '\u2028' || c == '\u2029') {
+                    writeUnicodeEscape(c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensureCapacity(4);
+                    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    if (Character.isSurrogate(c)) c = '\ufffd'; // Unpaired surrogate
+                    ensureCapacity(3);
+                    buf[count++] = (byte) (0xE0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            writeByte('"');
+        }
+        
+        private void writeUnicodeEscape(char c) {
+            ensureCapacity(6);
+            buf[count++] = '\\';
+            buf[count++] = 'u';
+            buf[count++] = HEX[(c >> 12) & 0xF];
+            buf[count++] = HEX[(c >> 8) & 0xF];
+            buf[count++] = HEX[(c >> 4) & 0xF];
+            buf[count++] = HEX[c & 0xF];
+        }
+        
+        private void writeAscii(String text) {
+            ensureCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buf[count++] = (byte) text.charAt(i);
+            }
+        }
+        
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            buf[count++] = (byte) b;
+        }
+        
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+    
+    // Content-Encoding negotiation with pooled Deflaters; bodies under the size threshold go out uncompressed
+    static class Compression {
+        static final int MIN_BYTES = Integer.getInteger("alpha.compress.minBytes", 1024);
+        private static final int LEVEL = Integer.getInteger("alpha.compress.level", 6);
+        private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+        private static final ArrayBlockingQueue<Codec> POOL = new ArrayBlockingQueue<>(32);
+        
+        // Deflater state is native memory, so instances are reset and reused rather than created per response
+        static class Codec {
+            final Deflater gzip;
+            final Deflater zlib;
+            final CRC32 crc = new CRC32();
+            byte[] out = new byte[16 * 1024];
+            
+            Codec(int level) {
+                gzip = new Deflater(level, true); // Raw deflate inside our own gzip framing
+                zlib = new Deflater(level, false); // HTTP "deflate" means the zlib format
+            }
+            
+            int compress(byte[] body, int offset, int length, String encoding) {
+                boolean gzipFormat = "gzip".equals(encoding);
+                Deflater deflater = gzipFormat ? gzip : zlib;
+                deflater.reset();
+                deflater.setInput(body, offset, length);
+                deflater.finish();
+                
+                int count = 0;
+                if (gzipFormat) {
+                    // Magic, CM=deflate, no flags, no mtime, no extra flags, OS unknown
+                    byte[] header = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+                    System.arraycopy(header, 0, out, 0, header.length);
+                    count = header.length;
+                }
+                while (!deflater.finished()) {
+                    if (count == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    count += deflater.deflate(out, count, out.length - count);
+                }
+                if (gzipFormat) {
+                    crc.reset();
+                    crc.update(body, offset, length);
+                    if (count + 8 > out.length) out = Arrays.copyOf(out, count + 8);
+                    putIntLittleEndian(out, count, (int) crc.getValue());
+                    putIntLittleEndian(out, count + 4, length);
+                    count += 8;
+                }
+                return count;
+            }
+        }
+        
+        // Static bodies compressed once, at the highest level, and served from memory afterwards
+        static class Precompressed {
+            final byte[] identity;
+            final byte[] gzip;
+            final byte[] deflate;
+            
+            Precompressed(byte[] body) {
+                Codec codec = new Codec(Deflater.BEST_COMPRESSION);
+                identity = body;
+                gzip = Arrays.copyOf(codec.out, codec.compress(body, 0, body.length, "gzip"));
+                deflate = Arrays.copyOf(codec.out, codec.compress(body, 0, body.length, "deflate"));
+                codec.gzip.end();
+                codec.zlib.end();
+            }
+        }
+        
+        // Prefers gzip, honours q=0 and "*"; null means identity
+        static String negotiate(HttpExchange exchange) {
+            String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (accept == null) return null;
+            float gzip = -1;
+            float deflate = -1;
+            float any = -1;
+            for (String part : accept.split(",")) {
+                String[] pieces = part.trim().split(";");
+                String coding = pieces[0].trim().toLowerCase(Locale.ROOT);
+                float quality = 1;
+                for (int i = 1; i < pieces.length; i++) {
+                    String param = pieces[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Float.parseFloat(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = quality;
+                else if (coding.equals("deflate")) deflate = quality;
+                else if (coding.equals("*")) any = quality;
+            }
+            if (gzip < 0) gzip = any;
+            if (deflate < 0) deflate = any;
+            if (gzip > 0 && gzip >= deflate) return "gzip";
+            if (deflate > 0) return "deflate";
+            return null;
+        }
+        
+        // Sends the body in the best encoding the client accepts; content type and other headers are the caller's
+        static void send(HttpExchange exchange, int statusCode, byte[] body, int offset, int length) throws IOException {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String encoding = length >= MIN_BYTES ? negotiate(exchange) : null;
+            if (encoding == null) {
+                exchange.sendResponseHeaders(statusCode, length == 0 ? -1 : length);
+                exchange.getResponseBody().write(body, offset, length);
+                exchange.getResponseBody().close();
+                return;
+            }
+            
+            Codec codec = POOL.poll();
+            if (codec == null) codec = new Codec(LEVEL);
+            try {
+                int compressed = codec.compress(body, offset, length, encoding);
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                exchange.sendResponseHeaders(statusCode, compressed);
+                exchange.getResponseBody().write(codec.out, 0, compressed);
+                exchange.getResponseBody().close();
+            } finally {
+                if (codec.out.length > MAX_POOLED_CAPACITY) codec.out = new byte[16 * 1024];
+                if (!POOL.offer(codec)) {
+                    codec.gzip.end();
+                    codec.zlib.end();
+                }
+            }
+        }
+        
+        static void send(HttpExchange exchange, int statusCode, Precompressed body) throws IOException {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String encoding = body.identity.length >= MIN_BYTES ? negotiate(exchange) : null;
+            byte[] bytes = body.identity;
+            if (encoding != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                bytes = "gzip".equals(encoding) ? body.gzip : body.deflate;
+            }
+            exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.getResponseBody().close();
+        }
+        
+        private static void putIntLittleEndian(byte[] buf, int offset, int value) {
+            buf[offset] = (byte) value;
+            buf[offset + 1] = (byte) (value >>> 8);
+            buf[offset + 2] = (byte) (value >>> 16);
+            buf[offset + 3] = (byte) (value >>> 24);
+        }
+    }
+    
+    // Pooled UTF-8 buffer for rendered pages; text() escapes for HTML element and attribute content
+    static class HtmlWriter {
+        private static final int INITIAL_CAPACITY = 16 * 1024;
+        private static final int MAX_POOLED_CAPACITY = 256 * 1024; // Larger buffers are left to the GC
+        private static final ArrayBlockingQueue<HtmlWriter> POOL = new ArrayBlockingQueue<>(64);
+        
+        private byte[] buf = new byte[INITIAL_CAPACITY];
+        private int count;
+        
+        private HtmlWriter() {
+        }
+        
+        public static HtmlWriter acquire() {
+            HtmlWriter writer = POOL.poll();
+            return writer != null ? writer : new HtmlWriter();
+        }
+        
+        public void release() {
+            count = 0;
+            if (buf.length <= MAX_POOLED_CAPACITY) POOL.offer(this);
+        }
+        
+        public HtmlWriter bytes(byte[] chunk) {
+            ensureCapacity(chunk.length);
+            System.arraycopy(chunk, 0, buf, count, chunk.length);
+            count += chunk.length;
+            return this;
+        }
+        
+        public HtmlWriter text(String value) {
+            writeUtf8(value, true);
+            return this;
+        }
+        
+        // Markup that is already safe, such as a stylesheet link or a JSON bootstrap script
+        public HtmlWriter raw(String value) {
+            writeUtf8(value, false);
+            return this;
+        }
+        
+        public HtmlWriter number(long value) {
+            return raw(Long.toString(value));
+        }
+        
+        public int size() {
+            return count;
+        }
+        
+        // The backing array; valid up to size() until the writer is released
+        byte[] buffer() {
+            return buf;
+        }
+        
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+        
+        @Override
+        public String toString() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+        
+        private void writeUtf8(String value, boolean escape) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (escape && (c == '<' || c == '>' || c == '&' || c == '"' || c == '\'')) {
+                        writeEntity(c);
+                    } else {
+                        ensureCapacity(1);
+                        buf[count++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    ensureCapacity(2);
+                    buf[count++] = (byte) (0xC0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensureCapacity(4);
+                    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    if (Character.isSurrogate(c)) c = '\ufffd'; // Unpaired surrogate
+                    ensureCapacity(3);
+                    buf[count++] = (byte) (0xE0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+        
+        private void writeEntity(char c) {
+            String entity = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;" : "&#39;";
+            ensureCapacity(entity.length());
+            for (int i = 0; i < entity.length(); i++) {
+                buf[count++] = (byte) entity.charAt(i);
+            }
+        }
+        
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+    
+    // Page template compiled once into UTF-8 chunks and slots:
+    // {{name}} is escaped, {{&name}} is inserted as-is, {{#name}}...{{/name}} renders when the value is
+    // true or a non-empty string, and {{^name}}...{{/name}} renders when it is not
+    static class Template {
+        private static final int CHUNK = 0;
+        private static final int TEXT = 1;
+        private static final int RAW = 2;
+        private static final int SECTION = 3;
+        private static final int INVERTED = 4;
+        
+        private final String[] names; // Distinct slot names; a Bindings holds one value per name
+        private final int[] kinds;
+        private final int[] operands; // Name index, or for sections the op index just past the matching end
+        private final int[] slots;
+        private final byte[][] chunks;
+        
+        private Template(String[] names, int[] kinds, int[] operands, int[] slots, byte[][] chunks) {
+            this.names = names;
+            this.kinds = kinds;
+            this.operands = operands;
+            this.slots = slots;
+            this.chunks = chunks;
+        }
+        
+        static Template compile(String source) {
+            List<String> names = new ArrayList<>();
+            List<Integer> kinds = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            List<Integer> operands = new ArrayList<>();
+            List<byte[]> chunks = new ArrayList<>();
+            Deque<Integer> open = new ArrayDeque<>();
+            
+            int pos = 0;
+            while (pos < source.length()) {
+                int start = source.indexOf("{{", pos);
+                if (start < 0) start = source.length();
+                if (start > pos) {
+                    kinds.add(CHUNK);
+                    slots.add(chunks.size());
+                    operands.add(0);
+                    chunks.add(source.substring(pos, start).getBytes(StandardCharsets.UTF_8));
+                }
+                if (start == source.length()) break;
+                
+                int end = source.indexOf("}}", start);
+                if (end < 0) throw new IllegalArgumentException("Unclosed tag at " + start);
+                String tag = source.substring(start + 2, end).trim();
+                pos = end + 2;
+                
+                char sigil = tag.isEmpty() ? ' ' : tag.charAt(0);
+                String name = "#^/&".indexOf(sigil) >= 0 ? tag.substring(1).trim() : tag;
+                if (sigil == '/') {
+                    if (open.isEmpty() || !names.get(slots.get(open.peek())).equals(name)) {
+                        throw new IllegalArgumentException("Unexpected {{/" + name + "}}");
+                    }
+                    operands.set(open.pop(), kinds.size());
+                    continue;
+                }
+                
+                int index = names.indexOf(name);
+                if (index < 0) {
+                    index = names.size();
+                    names.add(name);
+                }
+                if (sigil == '#' || sigil == '^') open.push(kinds.size());
+                kinds.add(sigil == '#' ? SECTION : sigil == '^' ? INVERTED : sigil == '&' ? RAW : TEXT);
+                slots.add(index);
+                operands.add(0);
+            }
+            if (!open.isEmpty()) throw new IllegalArgumentException("Unclosed {{#" + names.get(slots.get(open.peek())) + "}}");
+            
+            int[] kindArray = new int[kinds.size()];
+            int[] slotArray = new int[kinds.size()];
+            int[] operandArray = new int[kinds.size()];
+            for (int i = 0; i < kindArray.length; i++) {
+                kindArray[i] = kinds.get(i);
+                slotArray[i] = slots.get(i);
+                operandArray[i] = operands.get(i);
+            }
+            return new Template(names.toArray(new String[0]), kindArray, operandArray, slotArray, chunks.toArray(new byte[0][]));
+        }
+        
+        Bindings bind() {
+            return new Bindings();
+        }
+        
+        class Bindings {
+            private final Object[] values = new Object[names.length];
+            
+            // Values are strings, booleans or numbers; unset slots render as empty and sections as false
+            Bindings set(String name, Object value) {
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(name)) {
+                        values[i] = value;
+                        return this;
+                    }
+                }
+                throw new IllegalArgumentException("No slot named " + name);
             }
             
-            String[] pathParts = path.split("/");
-            if (pathParts.length < 5) {
-                sendResponse(exchange, "{\"error\":\"Invalid path\"}", 400);
-                return;
+            void renderTo(HtmlWriter out) {
+                int op = 0;
+                while (op < kinds.length) {
+                    int kind = kinds[op];
+                    if (kind == CHUNK) {
+                        out.bytes(chunks[slots[op]]);
+                    } else if (kind == SECTION || kind == INVERTED) {
+                        Object value = values[slots[op]];
+                        boolean truthy = value instanceof Boolean ? (Boolean) value
+                            : value instanceof String ? !((String) value).isEmpty() : value != null;
+                        if (truthy != (kind == SECTION)) {
+                            op = operands[op];
+                            continue;
+                        }
+                    } else {
+                        Object value = values[slots[op]];
+                        if (value instanceof Integer || value instanceof Long) {
+                            out.number(((Number) value).longValue());
+                        } else if (value != null) {
+                            if (kind == RAW) out.raw(value.toString());
+                            else out.text(value.toString());
+                        }
+                    }
+                    op++;
+                }
             }
             
-            String sessionId = pathParts[3];
-            String messageId = pathParts[4];
-            
-            String body = readRequestBody(exchange);
-            String emoji = extractParam(body, "emoji");
-            String action = extractParam(body, "action");
-            
-            if (emoji == null || action == null) {
-                sendResponse(exchange, "{\"error\":\"Missing emoji or action\"}", 400);
-                return;
+            HtmlWriter render() {
+                HtmlWriter out = HtmlWriter.acquire();
+                renderTo(out);
+                return out;
             }
+        }
+    }
+    
+    // Stylesheets and scripts shared by the pages, published once under content-hashed /static/ paths
+    static class StaticAssets {
+        private static final Map<String, Asset> byPath = new ConcurrentHashMap<>();
+        
+        static class Asset {
+            final String contentType;
+            final String etag;
+            final Compression.Precompressed body;
             
-            Message message = MessageSearch.findMessageById(sessionId, messageId);
-            if (message == null) {
-                sendResponse(exchange, "{\"error\":\"Message not found\"}", 404);
-                return;
+            Asset(String contentType, String etag, byte[] bytes) {
+                this.contentType = contentType;
+                this.etag = etag;
+                this.body = new Compression.Precompressed(bytes);
             }
-            
-            if ("add".equals(action)) {
-                message.addReaction(emoji);
-            } else if ("remove".equals(action)) {
-                message.removeReaction(emoji);
+        }
+        
+        // Returns the path to link; the hash changes with the content, so a published path never changes meaning
+        static String publish(String name, String extension, String content) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            String hash;
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+                StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 6; i++) hex.append(String.format("%02x", digest[i]));
+                hash = hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
             }
             
-            sendResponse(exchange, "{\"success\":true}", 200);
+            String contentType = ".css".equals(extension) ? "text/css; charset=UTF-8" : "text/javascript; charset=UTF-8";
+            String path = "/static/" + name + "." + hash + extension;
+            byPath.putIfAbsent(path, new Asset(contentType, "W/\"" + hash + "\"", bytes));
+            return path;
         }
         
-        private void handleTyping(HttpExchange exchange, String path, String method) throws IOException {
-            if (!"POST".equals(method)) {
-                sendResponse(exchange, "{\"error\":\"Method not allowed\"}", 405);
+        static Asset get(String path) {
+            return byPath.get(path);
+        }
+    }
+    
+    static class StaticHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            StaticAssets.Asset asset = StaticAssets.get(exchange.getRequestURI().getPath());
+            if (asset == null || !("GET".equals(exchange.getRequestMethod()) || "HEAD".equals(exchange.getRequestMethod()))) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
                 return;
             }
             
-            String sessionId = path.substring(13);
-            String body = readRequestBody(exchange);
-            String username = extractParam(body, "username");
-            String action = extractParam(body, "action");
-            
-            if (username == null || action == null) {
-                sendResponse(exchange, "{\"error\":\"Missing username or action\"}", 400);
+            exchange.getResponseHeaders().set("Content-Type", asset.contentType);
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31536000, immutable");
+            exchange.getResponseHeaders().set("ETag", asset.etag);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(asset.etag.substring(2)) || ifNoneMatch.trim().equals("*"))) {
+                exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
                 return;
             }
-            
-            Set<String> typingInSession = typingUsers.getOrDefault(sessionId, new HashSet<>());
-            
-            if ("start".equals(action)) {
-                typingInSession.add(username);
-                lastTypingTime.put(sessionId + ":" + username, System.currentTimeMillis());
-            } else if ("stop".equals(action)) {
-                typingInSession.remove(username);
-                lastTypingTime.remove(sessionId + ":" + username);
+            Compression.send(exchange, 200, asset.body);
+        }
+    }
+    
+    // QR Code model 2 encoder (ISO/IEC 18004): byte mode, error correction level M, versions 1-40
+    static class QRCode {
+        // Indexed by version; level M only
+        private static final int[] ECC_CODEWORDS_PER_BLOCK = {-1,
+            10, 16, 26, 18, 24, 16, 18, 22, 22, 26, 30, 22, 22, 24, 24, 28, 28, 26, 26, 26,
+            26, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28, 28};
+        private static final int[] ERROR_CORRECTION_BLOCKS = {-1,
+            1, 1, 1, 2, 2, 4, 4, 4, 5, 5, 5, 8, 9, 9, 10, 10, 11, 13, 14, 16,
+            17, 17, 18, 20, 21, 23, 25, 26, 28, 29, 31, 33, 35, 37, 38, 40, 43, 45, 47, 49};
+        private static final int FORMAT_LEVEL_M = 0;
+        
+        final int version;
+        final int size;
+        private final boolean[][] modules; // [y][x], true is dark
+        private final boolean[][] function; // Finder, timing, alignment, format and version modules
+        
+        private QRCode(int version) {
+            this.version = version;
+            this.size = version * 4 + 17;
+            this.modules = new boolean[size][size];
+            this.function = new boolean[size][size];
+        }
+        
+        static QRCode encode(byte[] data) {
+            int version = 1;
+            while (4 + (version < 10 ? 8 : 16) + data.length * 8 > dataCodewords(version) * 8) {
+                if (++version > 40) throw new IllegalArgumentException("Too long for a QR code: " + data.length + " bytes");
             }
             
-            typingUsers.put(sessionId, typingInSession);
-            cleanupExpiredTyping(sessionId);
+            // Mode indicator, character count, payload, terminator, then alternating pad bytes
+            int capacity = dataCodewords(version);
+            byte[] codewords = new byte[capacity];
+            BitWriter bits = new BitWriter(codewords);
+            bits.write(0b0100, 4);
+            bits.write(data.length, version < 10 ? 8 : 16);
+            for (byte b : data) bits.write(b & 0xFF, 8);
+            bits.write(0, Math.min(4, capacity * 8 - bits.length));
+            bits.write(0, (8 - bits.length % 8) % 8);
+            for (int pad = 0xEC; bits.length < capacity * 8; pad ^= 0xEC ^ 0x11) bits.write(pad, 8);
+            
+            QRCode qr = new QRCode(version);
+            qr.drawFunctionPatterns();
+            qr.drawCodewords(addErrorCorrection(version, codewords));
             
-            sendResponse(exchange, "{\"success\":true}", 200);
+            int bestMask = 0;
+            int bestPenalty = Integer.MAX_VALUE;
+            for (int mask = 0; mask < 8; mask++) {
+                qr.applyMask(mask);
+                qr.drawFormatBits(mask);
+                int penalty = qr.penalty();
+                if (penalty < bestPenalty) {
+                    bestMask = mask;
+                    bestPenalty = penalty;
+                }
+                qr.applyMask(mask); // XOR again to undo
+            }
+            qr.applyMask(bestMask);
+            qr.drawFormatBits(bestMask);
+            return qr;
         }
         
-        private void handleSearch(HttpExchange exchange, String path, String method) throws IOException {
-            if (!"GET".equals(method)) {
-                sendResponse(exchange, "{\"error\":\"Method not allowed\"}", 405);
-                return;
+        boolean isDark(int x, int y) {
+            return x >= 0 && x < size && y >= 0 && y < size && modules[y][x];
+        }
+        
+        // 1-bit grayscale PNG, scale pixels per module, with the quiet zone the spec asks for
+        byte[] toPng(int scale, int border) {
+            int width = (size + border * 2) * scale;
+            int rowBytes = (width + 7) / 8;
+            byte[] raw = new byte[(rowBytes + 1) * width];
+            for (int py = 0; py < width; py++) {
+                int row = py * (rowBytes + 1); // raw[row] is the filter type, 0 = none
+                int y = py / scale - border;
+                for (int px = 0; px < width; px++) {
+                    if (!isDark(px / scale - border, y)) raw[row + 1 + px / 8] |= (byte) (0x80 >>> (px % 8));
+                }
             }
             
-            String sessionId = path.substring(12);
-            String query = exchange.getRequestURI().getQuery();
-            String searchTerm = extractParam(query, "q");
-            
-            if (searchTerm == null || searchTerm.trim().isEmpty()) {
-                sendResponse(exchange, "{\"results\":[]}", 200);
-                return;
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            ByteArrayOutputStream idat = new ByteArrayOutputStream();
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) idat.write(chunk, 0, deflater.deflate(chunk));
+            } finally {
+                deflater.end();
             }
             
-            List<Message> results = MessageSearch.searchMessages(sessionId, searchTerm);
-            
-            StringBuilder json = new StringBuilder("{\"results\":[");
-            for (int i = 0; i < results.size(); i++) {
-                Message msg = results.get(i);
-                json.append("{");
-                json.append("\"id\":\"").append(msg.id).append("\",");
-                json.append("\"content\":\"").append(msg.content.replace("\"", "\\\"")).append("\",");
-                json.append("\"username\":\"").append(msg.username).append("\",");
-                json.append("\"timestamp\":\"").append(msg.timestamp).append("\"");
-                json.append("}");
-                if (i < results.size() - 1) json.append(",");
+            ByteArrayOutputStream png = new ByteArrayOutputStream(idat.size() + 64);
+            png.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}, 0, 8);
+            ByteBuffer header = ByteBuffer.allocate(13).putInt(width).putInt(width);
+            header.put((byte) 1).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0); // 1 bit, grayscale
+            writePngChunk(png, "IHDR", header.array());
+            writePngChunk(png, "IDAT", idat.toByteArray());
+            writePngChunk(png, "IEND", new byte[0]);
+            return png.toByteArray();
+        }
+        
+        // One path of horizontal runs, so the SVG scales to any size without blurring
+        String toSvg(int border) {
+            int extent = size + border * 2;
+            StringBuilder svg = new StringBuilder(size * size);
+            svg.append("<svg xmlns='http://www.w3.org/2000/svg' viewBox='0 0 ").append(extent).append(' ').append(extent)
+                .append("' shape-rendering='crispEdges'><rect width='100%' height='100%' fill='#fff'/><path fill='#000' d='");
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (!modules[y][x]) continue;
+                    int run = 1;
+                    while (x + run < size && modules[y][x + run]) run++;
+                    svg.append('M').append(x + border).append(' ').append(y + border).append('h').append(run).append("v1h-").append(run).append('z');
+                    x += run - 1;
+                }
             }
-            json.append("]}");
-            
-            sendResponse(exchange, json.toString(), 200);
+            return svg.append("'/></svg>").toString();
         }
         
-        private void handleMessageEdit(HttpExchange exchange, String path, String method) throws IOException {
-            if (!"POST".equals(method)) {
-                sendResponse(exchange, "{\"error\":\"Method not allowed\"}", 405);
-                return;
+        private static void writePngChunk(ByteArrayOutputStream png, String type, byte[] data) {
+            byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data);
+            png.write(ByteBuffer.allocate(4).putInt(data.length).array(), 0, 4);
+            png.write(typeBytes, 0, 4);
+            png.write(data, 0, data.length);
+            png.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array(), 0, 4);
+        }
+        
+        private static int rawDataModules(int version) {
+            int result = (16 * version + 128) * version + 64;
+            if (version >= 2) {
+                int alignments = version / 7 + 2;
+                result -= (25 * alignments - 10) * alignments - 55;
+                if (version >= 7) result -= 36;
             }
+            return result;
+        }
+        
+        private static int dataCodewords(int version) {
+            return rawDataModules(version) / 8 - ECC_CODEWORDS_PER_BLOCK[version] * ERROR_CORRECTION_BLOCKS[version];
+        }
+        
+        // Splits into blocks, appends Reed-Solomon codewords to each, then interleaves column by column
+        private static byte[] addErrorCorrection(int version, byte[] data) {
+            int blocks = ERROR_CORRECTION_BLOCKS[version];
+            int eccLength = ECC_CODEWORDS_PER_BLOCK[version];
+            int rawCodewords = rawDataModules(version) / 8;
+            int shortBlocks = blocks - rawCodewords % blocks;
+            int shortBlockLength = rawCodewords / blocks;
+            byte[] divisor = reedSolomonDivisor(eccLength);
             
-            String[] pathParts = path.split("/");
-            if (pathParts.length < 5) {
-                sendResponse(exchange, "{\"error\":\"Invalid path\"}", 400);
-                return;
+            byte[][] blockData = new byte[blocks][];
+            for (int i = 0, offset = 0; i < blocks; i++) {
+                int length = shortBlockLength - eccLength + (i < shortBlocks ? 0 : 1);
+                byte[] block = new byte[shortBlockLength + 1];
+                System.arraycopy(data, offset, block, 0, length);
+                byte[] ecc = reedSolomonRemainder(data, offset, length, divisor);
+                System.arraycopy(ecc, 0, block, shortBlockLength + 1 - eccLength, eccLength);
+                blockData[i] = block;
+                offset += length;
             }
             
-            String sessionId = pathParts[3];
-            String messageId = pathParts[4];
-            
-            String body = readRequestBody(exchange);
-            String newContent = extractParam(body, "content");
-            String username = extractParam(body, "username");
-            
-            if (newContent == null || username == null) {
-                sendResponse(exchange, "{\"error\":\"Missing content or username\"}", 400);
-                return;
+            byte[] result = new byte[rawCodewords];
+            int k = 0;
+            for (int i = 0; i <= shortBlockLength; i++) {
+                for (int j = 0; j < blocks; j++) {
+                    // Short blocks have no codeword in the last data column
+                    if (i != shortBlockLength - eccLength || j >= shortBlocks) result[k++] = blockData[j][i];
+                }
             }
-            
-            Message message = MessageSearch.findMessageById(sessionId, messageId);
-            if (message == null) {
-                sendResponse(exchange, "{\"error\":\"Message not found\"}", 404);
-                return;
+            return result;
+        }
+        
+        private static byte[] reedSolomonDivisor(int degree) {
+            byte[] result = new byte[degree];
+            result[degree - 1] = 1;
+            int root = 1;
+            for (int i = 0; i < degree; i++) {
+                for (int j = 0; j < degree; j++) {
+                    result[j] = (byte) gfMultiply(result[j] & 0xFF, root);
+                    if (j + 1 < degree) result[j] ^= result[j + 1];
+                }
+                root = gfMultiply(root, 0x02);
             }
-            
-            if (!message.username.equals(username)) {
-                sendResponse(exchange, "{\"error\":\"Unauthorized\"}", 403);
-                return;
+            return result;
+        }
+        
+        private static byte[] reedSolomonRemainder(byte[] data, int offset, int length, byte[] divisor) {
+            byte[] result = new byte[divisor.length];
+            for (int i = offset; i < offset + length; i++) {
+                int factor = (data[i] ^ result[0]) & 0xFF;
+                System.arraycopy(result, 1, result, 0, result.length - 1);
+                result[result.length - 1] = 0;
+                for (int j = 0; j < result.length; j++) result[j] ^= (byte) gfMultiply(divisor[j] & 0xFF, factor);
             }
-            
-            message.editMessage(newContent);
-            sendResponse(exchange, "{\"success\":true}", 200);
+            return result;
         }
         
-        private void handleMessageDelete(HttpExchange exchange, String path, String method) throws IOException {
-            if (!"POST".equals(method)) {
-                sendResponse(exchange, "{\"error\":\"Method not allowed\"}", 405);
-                return;
+        // Multiplication in GF(2^8) modulo x^8 + x^4 + x^3 + x^2 + 1
+        private static int gfMultiply(int x, int y) {
+            int z = 0;
+            for (int i = 7; i >= 0; i--) {
+                z = (z << 1) ^ ((z >>> 7) * 0x11D);
+                z ^= ((y >>> i) & 1) * x;
             }
-            
-            String[] pathParts = path.split("/");
-            if (pathParts.length < 5) {
-                sendResponse(exchange, "{\"error\":\"Invalid path\"}", 400);
-                return;
+            return z;
+        }
+        
+        private void drawFunctionPatterns() {
+            for (int i = 0; i < size; i++) {
+                setFunction(6, i, i % 2 == 0);
+                setFunction(i, 6, i % 2 == 0);
             }
+            drawFinder(3, 3);
+            drawFinder(size - 4, 3);
+            drawFinder(3, size - 4);
             
-            String sessionId = pathParts[3];
-            String messageId = pathParts[4];
-            
-            String body = readRequestBody(exchange);
-            String username = extractParam(body, "username");
-            
-            if (username == null) {
-                sendResponse(exchange, "{\"error\":\"Missing username\"}", 400);
-                return;
+            int[] positions = alignmentPositions();
+            int last = positions.length - 1;
+            for (int i = 0; i < positions.length; i++) {
+                for (int j = 0; j < positions.length; j++) {
+                    // The three corners already hold finder patterns
+                    if (!(i == 0 && j == 0 || i == 0 && j == last || i == last && j == 0)) drawAlignment(positions[i], positions[j]);
+                }
             }
             
-            Message message = MessageSearch.findMessageById(sessionId, messageId);
-            if (message == null) {
-                sendResponse(exchange, "{\"error\":\"Message not found\"}", 404);
-                return;
+            drawFormatBits(0); // Reserve the area; the real mask is drawn last
+            if (version >= 7) {
+                int remainder = version;
+                for (int i = 0; i < 12; i++) remainder = (remainder << 1) ^ ((remainder >>> 11) * 0x1F25);
+                long bits = (long) version << 12 | remainder;
+                for (int i = 0; i < 18; i++) {
+                    boolean dark = ((bits >>> i) & 1) != 0;
+                    int a = size - 11 + i % 3;
+                    int b = i / 3;
+                    setFunction(a, b, dark);
+                    setFunction(b, a, dark);
+                }
             }
-            
-            if (!message.username.equals(username)) {
-                sendResponse(exchange, "{\"error\":\"Unauthorized\"}", 403);
-                return;
+        }
+        
+        private int[] alignmentPositions() {
+            if (version == 1) return new int[0];
+            int count = version / 7 + 2;
+            int step = version == 32 ? 26 : (version * 4 + count * 2 + 1) / (count * 2 - 2) * 2;
+            int[] result = new int[count];
+            result[0] = 6;
+            for (int i = count - 1, position = size - 7; i >= 1; i--, position -= step) result[i] = position;
+            return result;
+        }
+        
+        private void drawFinder(int x, int y) {
+            for (int dy = -4; dy <= 4; dy++) {
+                for (int dx = -4; dx <= 4; dx++) {
+                    int distance = Math.max(Math.abs(dx), Math.abs(dy));
+                    int xx = x + dx;
+                    int yy = y + dy;
+                    if (xx >= 0 && xx < size && yy >= 0 && yy < size) setFunction(xx, yy, distance != 2 && distance != 4);
+                }
+            }
+        }
+        
+        private void drawAlignment(int x, int y) {
+            for (int dy = -2; dy <= 2; dy++) {
+                for (int dx = -2; dx <= 2; dx++) setFunction(x + dx, y + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
             }
-            
-            message.deleteMessage();
-            sendResponse(exchange, "{\"success\":true}", 200);
         }
         
-        private void cleanupExpiredTyping(String sessionId) {
-            Set<String> typingInSession = typingUsers.get(sessionId);
-            if (typingInSession == null) return;
+        private void drawFormatBits(int mask) {
+            int data = FORMAT_LEVEL_M << 3 | mask;
+            int remainder = data;
+            for (int i = 0; i < 10; i++) remainder = (remainder << 1) ^ ((remainder >>> 9) * 0x537);
+            int bits = (data << 10 | remainder) ^ 0x5412;
             
-            long currentTime = System.currentTimeMillis();
-            Iterator<String> iterator = typingInSession.iterator();
+            // Around the top-left finder
+            for (int i = 0; i <= 5; i++) setFunction(8, i, bit(bits, i));
+            setFunction(8, 7, bit(bits, 6));
+            setFunction(8, 8, bit(bits, 7));
+            setFunction(7, 8, bit(bits, 8));
+            for (int i = 9; i < 15; i++) setFunction(14 - i, 8, bit(bits, i));
             
-            while (iterator.hasNext()) {
-                String user = iterator.next();
-                String key = sessionId + ":" + user;
-                Long lastTime = lastTypingTime.get(key);
-                
-                if (lastTime == null || currentTime - lastTime > 3000) {
-                    iterator.remove();
-                    lastTypingTime.remove(key);
+            // Split between the other two finders
+            for (int i = 0; i < 8; i++) setFunction(size - 1 - i, 8, bit(bits, i));
+            for (int i = 8; i < 15; i++) setFunction(8, size - 15 + i, bit(bits, i));
+            setFunction(8, size - 8, true); // Always dark
+        }
+        
+        // Two-column zigzag from the bottom right, skipping the vertical timing column
+        private void drawCodewords(byte[] codewords) {
+            int i = 0;
+            for (int right = size - 1; right >= 1; right -= 2) {
+                if (right == 6) right = 5;
+                boolean upward = ((right + 1) & 2) == 0;
+                for (int vertical = 0; vertical < size; vertical++) {
+                    int y = upward ? size - 1 - vertical : vertical;
+                    for (int j = 0; j < 2; j++) {
+                        int x = right - j;
+                        if (!function[y][x] && i < codewords.length * 8) {
+                            modules[y][x] = bit(codewords[i >>> 3], 7 - (i & 7));
+                            i++;
+                        }
+                    }
                 }
             }
         }
         
-        // Helper methods
-        private String readRequestBody(HttpExchange exchange) throws IOException {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()));
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                body.append(line);
-            }
-            return body.toString();
-        }
-        
-        private String extractParam(String query, String param) {
-            if (query == null) return null;
-            String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length == 2 && keyValue[0].equals(param)) {
-                    try {
-                        return java.net.URLDecoder.decode(keyValue[1], "UTF-8");
-                    } catch (Exception e) {
-                        return keyValue[1];
+        private void applyMask(int mask) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (function[y][x]) continue;
+                    boolean invert;
+                    switch (mask) {
+                        case 0: invert = (x + y) % 2 == 0; break;
+                        case 1: invert = y % 2 == 0; break;
+                        case 2: invert = x % 3 == 0; break;
+                        case 3: invert = (x + y) % 3 == 0; break;
+                        case 4: invert = (x / 3 + y / 2) % 2 == 0; break;
+                        case 5: invert = x * y % 2 + x * y % 3 == 0; break;
+                        case 6: invert = (x * y % 2 + x * y % 3) % 2 == 0; break;
+                        default: invert = ((x + y) % 2 + x * y % 3) % 2 == 0; break;
                     }
+                    modules[y][x] ^= invert;
                 }
             }
-            return null;
         }
         
-        private void sendResponse(HttpExchange exchange, String response, int statusCode) throws IOException {
-            byte[] responseBytes = response.getBytes("UTF-8");
-            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-            exchange.sendResponseHeaders(statusCode, responseBytes.length);
-            exchange.getResponseBody().write(responseBytes);
-            exchange.getResponseBody().close();
+        // The four penalty rules used to pick a mask: long runs, 2x2 blocks, finder look-alikes, dark balance
+        private int penalty() {
+            int result = 0;
+            int dark = 0;
+            for (int a = 0; a < size; a++) {
+                int rowRun = 0;
+                int columnRun = 0;
+                for (int b = 0; b < size; b++) {
+                    if (modules[a][b]) dark++;
+                    rowRun = b > 0 && modules[a][b] == modules[a][b - 1] ? rowRun + 1 : 1;
+                    columnRun = b > 0 && modules[b][a] == modules[b - 1][a] ? columnRun + 1 : 1;
+                    if (rowRun == 5) result += 3;
+                    else if (rowRun > 5) result++;
+                    if (columnRun == 5) result += 3;
+                    else if (columnRun > 5) result++;
+                    
+                    if (a + 1 < size && b + 1 < size) {
+                        boolean color = modules[a][b];
+                        if (color == modules[a][b + 1] && color == modules[a + 1][b] && color == modules[a + 1][b + 1]) result += 3;
+                    }
+                    if (b + 11 <= size) {
+                        if (finderLike(a, b, true)) result += 40;
+                        if (finderLike(a, b, false)) result += 40;
+                    }
+                }
+            }
+            int total = size * size;
+            result += Math.abs(dark * 20 - total * 10) / total * 10; // 10 points per 5% away from half dark
+            return result;
+        }
+        
+        // 1:1:3:1:1 dark pattern with four light modules on one side, starting at (line, offset)
+        private boolean finderLike(int line, int offset, boolean row) {
+            int pattern = 0;
+            for (int i = 0; i < 11; i++) {
+                boolean darkModule = row ? modules[line][offset + i] : modules[offset + i][line];
+                pattern = pattern << 1 | (darkModule ? 1 : 0);
+            }
+            return pattern == 0b10111010000 || pattern == 0b00001011101;
+        }
+        
+        private void setFunction(int x, int y, boolean dark) {
+            modules[y][x] = dark;
+            function[y][x] = true;
+        }
+        
+        private static boolean bit(int value, int index) {
+            return ((value >>> index) & 1) != 0;
+        }
+        
+        private static class BitWriter {
+            private final byte[] out;
+            int length;
+            
+            BitWriter(byte[] out) {
+                this.out = out;
+            }
+            
+            void write(int value, int count) {
+                for (int i = count - 1; i >= 0; i--, length++) {
+                    if (((value >>> i) & 1) != 0) out[length >>> 3] |= (byte) (0x80 >>> (length & 7));
+                }
+            }
         }
     }
     
     // Enhanced QR Handler
     static class QRHandler implements HttpHandler {
+        private static final int CACHE_ENTRIES = Integer.getInteger("alpha.qr.cacheEntries", 256);
+        private static final int PNG_SCALE = 8;
+        private static final int QUIET_ZONE = 4;
+        
+        // Rendered codes by format and URL; the image depends on nothing else
+        private static final Object cacheLock = new Object();
+        private static final LinkedHashMap<String, Rendered> cache = new LinkedHashMap<String, Rendered>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rendered> eldest) {
+                return size() > CACHE_ENTRIES;
+            }
+        };
+        
+        static class Rendered {
+            final String contentType;
+            final byte[] body;
+            final String etag;
+            
+            Rendered(String contentType, byte[] body, String etag) {
+                this.contentType = contentType;
+                this.body = body;
+                this.etag = etag;
+            }
+        }
+        
         public void handle(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
             String sessionId = path.substring(4); // Remove "/qr/"
+            boolean svg = "svg".equals(FormData.query(exchange).get("format"));
             
-            String chatUrl = baseUrl + "/chat/" + sessionId;
-            BufferedImage qrImage = generateFunctionalQRCode(sessionId, chatUrl);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(qrImage, "PNG", baos);
+            String chatUrl = baseUrl + "/chat/" + URLEncoder.encode(sessionId, "UTF-8").replace("+", "%20");
+            Rendered rendered = render(chatUrl, svg);
             
-            exchange.getResponseHeaders().set("Content-Type", "image/png");
-            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
-            exchange.sendResponseHeaders(200, baos.size());
-            exchange.getResponseBody().write(baos.toByteArray());
-            exchange.getResponseBody().close();
+            exchange.getResponseHeaders().set("Content-Type", rendered.contentType);
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+            exchange.getResponseHeaders().set("ETag", rendered.etag);
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(rendered.etag.substring(2)) || ifNoneMatch.trim().equals("*"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            if (svg) {
+                Compression.send(exchange, 200, rendered.body, 0, rendered.body.length);
+            } else {
+                // PNG is already deflated
+                exchange.sendResponseHeaders(200, rendered.body.length);
+                exchange.getResponseBody().write(rendered.body);
+                exchange.getResponseBody().close();
+            }
         }
         
-        private BufferedImage generateFunctionalQRCode(String sessionId, String url) {
-            BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2d = image.createGraphics();
-            
-            // White background
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, 300, 300);
-            
-            // Generate QR-like pattern based on URL
-            g2d.setColor(Color.BLACK);
-            Random rand = new Random(url.hashCode());
-            int blockSize = 6;
-            
-            // Position detection patterns (corners)
-            drawFinderPattern(g2d, 20, 20);
-            drawFinderPattern(g2d, 230, 20);
-            drawFinderPattern(g2d, 20, 230);
-            
-            // Timing patterns
-            for (int i = 60; i < 240; i += blockSize) {
-                if ((i / blockSize) % 2 == 0) {
-                    g2d.fillRect(i, 50, blockSize, blockSize);
-                    g2d.fillRect(50, i, blockSize, blockSize);
-                }
+        private static Rendered render(String url, boolean svg) {
+            String key = (svg ? "svg " : "png ") + url;
+            synchronized (cacheLock) {
+                Rendered cached = cache.get(key);
+                if (cached != null) return cached;
             }
             
-            // Data modules based on URL content
-            for (int x = 70; x < 230; x += blockSize) {
-                for (int y = 70; y < 230; y += blockSize) {
-                    int charIndex = ((x/blockSize) + (y/blockSize)) % url.length();
-                    int charValue = url.charAt(charIndex);
-                    if ((charValue + x + y) % 3 == 0) {
-                        g2d.fillRect(x, y, blockSize - 1, blockSize - 1);
-                    }
-                }
+            QRCode qr = QRCode.encode(url.getBytes(StandardCharsets.UTF_8));
+            byte[] body = svg ? qr.toSvg(QUIET_ZONE).getBytes(StandardCharsets.UTF_8) : qr.toPng(PNG_SCALE, QUIET_ZONE);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            Rendered rendered = new Rendered(svg ? "image/svg+xml" : "image/png", body,
+                "W/\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"");
+            synchronized (cacheLock) {
+                cache.put(key, rendered);
             }
-            
-            // Add session info
-            g2d.setFont(new Font("Arial", Font.BOLD, 10));
-            g2d.drawString("Session: " + sessionId, 10, 290);
-            
-            g2d.dispose();
-            return image;
-        }
-        
-        private void drawFinderPattern(Graphics2D g2d, int x, int y) {
-            // 7x7 finder pattern
-            g2d.fillRect(x, y, 42, 42);
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(x + 6, y + 6, 30, 30);
-            g2d.setColor(Color.BLACK);
-            g2d.fillRect(x + 12, y + 12, 18, 18);
+            return rendered;
         }
     }
     
     // Enhanced Main Handler with profile and settings pages
     static class MainHandler implements HttpHandler {
+        // Pages with no per-request content, compressed on first use
+        private volatile Compression.Precompressed homePage;
+        private volatile Compression.Precompressed notFoundPage;
+        
+        // Published once per process; pages link these instead of inlining them
+        private final String homeCss = StaticAssets.publish("home", ".css", getImprovedHomeCSS());
+        private final String baseCss = StaticAssets.publish("base", ".css", getBaseCSS());
+        private final String dashboardCss = StaticAssets.publish("dashboard", ".css", getDashboardCSS());
+        private final String profileCss = StaticAssets.publish("profile", ".css", getProfileCSS());
+        private final String settingsCss = StaticAssets.publish("settings", ".css", getSettingsCSS());
+        private final String mobileChatCss = StaticAssets.publish("mobile-chat", ".css", getMobileChatCSS());
+        private final String themeCss = StaticAssets.publish("theme", ".css", getThemeCSS());
+        private final String chatJs = StaticAssets.publish("chat", ".js", getChatScript());
+        private final String mobileChatJs = StaticAssets.publish("mobile-chat", ".js", getMobileChatScript());
+        private final String settingsJs = StaticAssets.publish("settings", ".js", getSettingsScript());
+        
         public void handle(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
             String method = exchange.getRequestMethod();
             
-            if (path.equals("/") && method.equals("GET")) {
-                handleHome(exchange);
-            } else if (path.equals("/register") && method.equals("POST")) {
-                handleRegister(exchange);
-            } else if (path.equals("/login") && method.equals("POST")) {
-                handleLogin(exchange);
-            } else if (path.startsWith("/dashboard")) {
-                handleDashboard(exchange);
-            } else if (path.startsWith("/profile")) {
-                handleProfilePage(exchange);
-            } else if (path.startsWith("/settings")) {
-                handleSettingsPage(exchange);
-            } else if (path.startsWith("/chat/")) {
-                handleChat(exchange);
-            } else {
-                sendHtmlResponse(exchange, generate404Page(), 404);
+            try {
+                if (path.equals("/") && method.equals("GET")) {
+                    handleHome(exchange);
+                } else if (path.equals("/register") && method.equals("POST")) {
+                    handleRegister(exchange);
+                } else if (path.equals("/login") && method.equals("POST")) {
+                    handleLogin(exchange);
+                } else if (path.startsWith("/dashboard")) {
+                    handleDashboard(exchange);
+                } else if (path.startsWith("/profile")) {
+                    handleProfilePage(exchange);
+                } else if (path.startsWith("/settings")) {
+                    handleSettingsPage(exchange);
+                } else if (path.startsWith("/chat/")) {
+                    handleChat(exchange);
+                } else {
+                    if (notFoundPage == null) notFoundPage = new Compression.Precompressed(generate404Page().getBytes(StandardCharsets.UTF_8));
+                    sendHtmlResponse(exchange, notFoundPage, 404);
+                }
+            } catch (FormData.TooLargeException e) {
+                exchange.sendResponseHeaders(413, -1);
+                exchange.close();
+            } catch (WriteAheadLog.FailedException e) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
             }
         }
         
         private void handleHome(HttpExchange exchange) throws IOException {
-            String html = generateHomePage();
-            sendHtmlResponse(exchange, html, 200);
+            if (homePage == null) {
+                HtmlWriter html = generateHomePage();
+                homePage = new Compression.Precompressed(html.toByteArray());
+                html.release();
+            }
+            sendHtmlResponse(exchange, homePage, 200);
         }
         
         private void handleRegister(HttpExchange exchange) throws IOException {
-            String body = readRequestBody(exchange);
-            String username = extractParam(body, "username");
-            String displayName = extractParam(body, "displayName");
+            FormData body = FormData.read(exchange);
+            String username = body.get("username");
+            String displayName = body.get("displayName");
             
             if (username == null || displayName == null) {
-                String html = generateHomePage("Username and display name are required");
+                HtmlWriter html = generateHomePage("Username and display name are required");
                 sendHtmlResponse(exchange, html, 400);
                 return;
             }
             
             if (users.containsKey(username)) {
-                String html = generateHomePage("Username already exists");
+                HtmlWriter html = generateHomePage("Username already exists");
                 sendHtmlResponse(exchange, html, 400);
                 return;
             }
             
+            WriteAheadLog.checkWritable();
             User user = new User(username, displayName);
             users.put(username, user);
             profiles.put(username, new UserProfile(username));
             settings.put(username, new UserSettings(username));
+            WriteAheadLog.logUser(user);
+            WriteAheadLog.awaitDurable();
             
             // Redirect to dashboard
             exchange.getResponseHeaders().add("Location", "/dashboard?user=" + username);
@@ -911,18 +5587,18 @@ public class Main {
         }
         
         private void handleLogin(HttpExchange exchange) throws IOException {
-            String body = readRequestBody(exchange);
-            String username = extractParam(body, "username");
+            FormData body = FormData.read(exchange);
+            String username = body.get("username");
             
             if (username == null) {
-                String html = generateHomePage("Username is required");
+                HtmlWriter html = generateHomePage("Username is required");
                 sendHtmlResponse(exchange, html, 400);
                 return;
             }
             
             User user = users.get(username);
             if (user == null) {
-                String html = generateHomePage("User not found");
+                HtmlWriter html = generateHomePage("User not found");
                 sendHtmlResponse(exchange, html, 404);
                 return;
             }
@@ -933,8 +5609,8 @@ public class Main {
         }
         
         private void handleDashboard(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            String username = extractParam(query, "user");
+            FormData query = FormData.query(exchange);
+            String username = query.get("user");
             
             if (username == null) {
                 exchange.getResponseHeaders().add("Location", "/");
@@ -954,34 +5630,37 @@ public class Main {
                 return;
             }
             
-            String html = generateDashboardPage(user, null);
+            HtmlWriter html = generateDashboardPage(user, null);
             sendHtmlResponse(exchange, html, 200);
         }
         
         private void handleCreateSession(HttpExchange exchange, User user) throws IOException {
-            String body = readRequestBody(exchange);
-            String password = extractParam(body, "password");
+            FormData body = FormData.read(exchange);
+            String password = body.get("password");
             
             if (password == null || password.trim().isEmpty()) {
-                String html = generateDashboardPage(user, null, "Password is required");
+                HtmlWriter html = generateDashboardPage(user, null, "Password is required");
                 sendHtmlResponse(exchange, html, 400);
                 return;
             }
             
             // Create session with password as ID
             String sessionId = password.trim();
-            if (!sessions.containsKey(sessionId)) {
-                sessions.put(sessionId, new ArrayList<>());
+            WriteAheadLog.checkWritable();
+            if (sessions.putIfAbsent(sessionId, new SessionLog()) == null) {
                 user.totalSessions++;
+                user.version.incrementAndGet();
+                WriteAheadLog.logSession(sessionId, user.username);
+                WriteAheadLog.awaitDurable();
             }
             
-            String html = generateDashboardPage(user, sessionId);
+            HtmlWriter html = generateDashboardPage(user, sessionId);
             sendHtmlResponse(exchange, html, 200);
         }
         
         private void handleProfilePage(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            String username = extractParam(query, "user");
+            FormData query = FormData.query(exchange);
+            String username = query.get("user");
             
             if (username == null) {
                 exchange.getResponseHeaders().add("Location", "/");
@@ -1001,12 +5680,13 @@ public class Main {
                 return;
             }
             
-            String html = generateProfilePage(user);
+            HtmlWriter html = generateProfilePage(user);
             sendHtmlResponse(exchange, html, 200);
         }
         
         private void handleProfileUpdate(HttpExchange exchange, User user) throws IOException {
-            String body = readRequestBody(exchange);
+            FormData body = FormData.read(exchange);
+            WriteAheadLog.checkWritable();
             UserProfile profile = profiles.get(user.username);
             
             if (profile == null) {
@@ -1015,36 +5695,38 @@ public class Main {
             }
             
             // Update profile fields
-            String displayName = extractParam(body, "displayName");
+            String displayName = body.get("displayName");
             if (displayName != null) user.displayName = displayName;
             
-            String email = extractParam(body, "email");
+            String email = body.get("email");
             if (email != null) user.email = email;
             
-            String bio = extractParam(body, "bio");
+            String bio = body.get("bio");
             if (bio != null) profile.bio = bio;
             
-            String profilePicture = extractParam(body, "profilePicture");
+            String profilePicture = body.get("profilePicture");
             if (profilePicture != null) profile.profilePicture = profilePicture;
             
-            String location = extractParam(body, "location");
+            String location = body.get("location");
             if (location != null) profile.location = location;
             
-            String website = extractParam(body, "website");
+            String website = body.get("website");
             if (website != null) profile.website = website;
             
-            String phoneNumber = extractParam(body, "phoneNumber");
+            String phoneNumber = body.get("phoneNumber");
             if (phoneNumber != null) profile.phoneNumber = phoneNumber;
             
             user.updateActivity();
+            WriteAheadLog.logProfile(user, profile);
+            WriteAheadLog.awaitDurable();
             
-            String html = generateProfilePage(user, "Profile updated successfully!");
+            HtmlWriter html = generateProfilePage(user, "Profile updated successfully!");
             sendHtmlResponse(exchange, html, 200);
         }
         
         private void handleSettingsPage(HttpExchange exchange) throws IOException {
-            String query = exchange.getRequestURI().getQuery();
-            String username = extractParam(query, "user");
+            FormData query = FormData.query(exchange);
+            String username = query.get("user");
             
             if (username == null) {
                 exchange.getResponseHeaders().add("Location", "/");
@@ -1070,33 +5752,34 @@ public class Main {
                 return;
             }
             
-            String html = generateSettingsPage(user, userSettings);
+            HtmlWriter html = generateSettingsPage(user, userSettings);
             sendHtmlResponse(exchange, html, 200);
         }
         
         private void handleSettingsUpdate(HttpExchange exchange, User user, UserSettings userSettings) throws IOException {
-            String body = readRequestBody(exchange);
+            FormData body = FormData.read(exchange);
+            WriteAheadLog.checkWritable();
             
             // Update settings
-            String notifications = extractParam(body, "notifications");
+            String notifications = body.get("notifications");
             if (notifications != null) userSettings.notifications = "on".equals(notifications);
             
-            String soundEnabled = extractParam(body, "soundEnabled");
+            String soundEnabled = body.get("soundEnabled");
             if (soundEnabled != null) userSettings.soundEnabled = "on".equals(soundEnabled);
             
-            String theme = extractParam(body, "theme");
+            String theme = body.get("theme");
             if (theme != null) userSettings.theme = theme;
             
-            String language = extractParam(body, "language");
+            String language = body.get("language");
             if (language != null) userSettings.language = language;
             
-            String compactMode = extractParam(body, "compactMode");
+            String compactMode = body.get("compactMode");
             if (compactMode != null) userSettings.compactMode = "on".equals(compactMode);
             
-            String readReceipts = extractParam(body, "readReceipts");
+            String readReceipts = body.get("readReceipts");
             if (readReceipts != null) userSettings.readReceipts = "on".equals(readReceipts);
             
-            String sessionTimeout = extractParam(body, "sessionTimeout");
+            String sessionTimeout = body.get("sessionTimeout");
             if (sessionTimeout != null) {
                 try {
                     userSettings.sessionTimeout = Integer.parseInt(sessionTimeout);
@@ -1106,10 +5789,10 @@ public class Main {
             }
             
             // Update new functional settings
-            String autoRefresh = extractParam(body, "autoRefresh");
+            String autoRefresh = body.get("autoRefresh");
             if (autoRefresh != null) userSettings.autoRefresh = "on".equals(autoRefresh);
             
-            String refreshInterval = extractParam(body, "refreshInterval");
+            String refreshInterval = body.get("refreshInterval");
             if (refreshInterval != null) {
                 try {
                     int interval = Integer.parseInt(refreshInterval);
@@ -1121,13 +5804,13 @@ public class Main {
                 }
             }
             
-            String showTimestamps = extractParam(body, "showTimestamps");
+            String showTimestamps = body.get("showTimestamps");
             if (showTimestamps != null) userSettings.showTimestamps = "on".equals(showTimestamps);
             
-            String showTypingIndicators = extractParam(body, "showTypingIndicators");
+            String showTypingIndicators = body.get("showTypingIndicators");
             if (showTypingIndicators != null) userSettings.showTypingIndicators = "on".equals(showTypingIndicators);
             
-            String maxMessagesDisplay = extractParam(body, "maxMessagesDisplay");
+            String maxMessagesDisplay = body.get("maxMessagesDisplay");
             if (maxMessagesDisplay != null) {
                 try {
                     int maxMessages = Integer.parseInt(maxMessagesDisplay);
@@ -1140,8 +5823,11 @@ public class Main {
             }
             
             user.updateActivity();
+            userSettings.version.incrementAndGet();
+            WriteAheadLog.logSettings(userSettings);
+            WriteAheadLog.awaitDurable();
             
-            String html = generateSettingsPage(user, userSettings, "Settings updated successfully!");
+            HtmlWriter html = generateSettingsPage(user, userSettings, "Settings updated successfully!");
             sendHtmlResponse(exchange, html, 200);
         }
         
@@ -1150,369 +5836,374 @@ public class Main {
             String sessionId = path.substring(6); // Remove "/chat/"
             
             // Create session if it doesn't exist
-            if (!sessions.containsKey(sessionId)) {
-                sessions.put(sessionId, new ArrayList<>());
-            }
+            sessions.computeIfAbsent(sessionId, k -> new SessionLog());
             
-            String html = generateMobileChatPage(sessionId);
+            HtmlWriter html = generateMobileChatPage(sessionId);
             sendHtmlResponse(exchange, html, 200);
         }
         
         // Helper methods
-        private String readRequestBody(HttpExchange exchange) throws IOException {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()));
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                body.append(line);
-            }
-            return body.toString();
-        }
-        
-        private String extractParam(String query, String param) {
-            if (query == null) return null;
-            String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length == 2 && keyValue[0].equals(param)) {
-                    try {
-                        return java.net.URLDecoder.decode(keyValue[1], "UTF-8");
-                    } catch (Exception e) {
-                        return keyValue[1];
-                    }
-                }
+        private void sendHtmlResponse(HttpExchange exchange, HtmlWriter html, int statusCode) throws IOException {
+            try {
+                setHtmlHeaders(exchange);
+                Compression.send(exchange, statusCode, html.buffer(), 0, html.size());
+            } finally {
+                html.release();
             }
-            return null;
         }
         
-        private void sendHtmlResponse(HttpExchange exchange, String html, int statusCode) throws IOException {
-            byte[] responseBytes = html.getBytes("UTF-8");
+        private void sendHtmlResponse(HttpExchange exchange, Compression.Precompressed page, int statusCode) throws IOException {
+            setHtmlHeaders(exchange);
+            Compression.send(exchange, statusCode, page);
+        }
+        
+        private void setHtmlHeaders(HttpExchange exchange) {
             exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
             exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
             exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
             exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
-            exchange.sendResponseHeaders(statusCode, responseBytes.length);
-            exchange.getResponseBody().write(responseBytes);
-            exchange.getResponseBody().close();
         }
         
+        // HTML page templates: compiled once per handler, so a request only fills in the slots
+        private static final String NAVBAR = "<nav class='navbar'>" +
+            "<div class='nav-brand'>Alpha Texting</div>" +
+            "<div class='nav-menu'>" +
+            "<a href='/dashboard?user={{username}}'>Dashboard</a>" +
+            "<a href='/profile?user={{username}}'>Profile</a>" +
+            "<a href='/settings?user={{username}}'>Settings</a>" +
+            "<span class='nav-user'>Welcome, {{displayName}}</span>" +
+            "<a href='/'>Logout</a>" +
+            "</div></nav>";
+        
+        private final Template homeTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Alpha Texting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(homeCss) + "</head><body>" +
+            "<div class='hero-section'>" +
+            "<div class='container'>" +
+            "<div class='header'>" +
+            "<h1 class='main-title'>Alpha Texting</h1>" +
+            "<p class='subtitle'>Professional cross-device chat with advanced features</p>" +
+            "</div>" +
+            "{{#error}}<div class='alert alert-error'>{{error}}</div>{{/error}}" +
+            "<div class='auth-container'>" +
+            "<div class='auth-card login-card'>" +
+            "<h3>Welcome Back</h3>" +
+            "<form action='/login' method='post'>" +
+            "<div class='form-group'>" +
+            "<input type='text' name='username' placeholder='Enter your username' required>" +
+            "</div>" +
+            "<button type='submit' class='btn btn-primary'>Sign In</button>" +
+            "</form>" +
+            "</div>" +
+            "<div class='auth-card register-card'>" +
+            "<h3>Create Account</h3>" +
+            "<form action='/register' method='post'>" +
+            "<div class='form-group'>" +
+            "<input type='text' name='username' placeholder='Choose username' required>" +
+            "</div>" +
+            "<div class='form-group'>" +
+            "<input type='text' name='displayName' placeholder='Your display name' required>" +
+            "</div>" +
+            "<button type='submit' class='btn btn-secondary'>Get Started</button>" +
+            "</form>" +
+            "</div>" +
+            "</div>" +
+            "<div class='features'>" +
+            "<div class='feature'><div class='feature-icon'>💬</div><div class='feature-text'><strong>Advanced Messaging</strong><br>Reactions, replies, and real-time sync</div></div>" +
+            "<div class='feature'><div class='feature-icon'>🔍</div><div class='feature-text'><strong>Message Search</strong><br>Find any message instantly</div></div>" +
+            "<div class='feature'><div class='feature-icon'>🌙</div><div class='feature-text'><strong>Dark Mode</strong><br>Easy on the eyes</div></div>" +
+            "<div class='feature'><div class='feature-icon'>📱</div><div class='feature-text'><strong>Cross-Device</strong><br>Chat between phone and computer</div></div>" +
+            "</div>" +
+            "</div>" +
+            "</div></body></html>");
+        
+        private final Template dashboardTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Dashboard - Alpha Texting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(baseCss, dashboardCss, themeCss) + "</head><body class='{{theme}}-theme'>" +
+            NAVBAR +
+            "<div class='container'>" +
+            "<div class='stats-grid'>" +
+            "<div class='stat-card'><div class='stat-number'>{{totalSessions}}</div><div class='stat-label'>Sessions</div></div>" +
+            "<div class='stat-card'><div class='stat-number'>{{totalMessages}}</div><div class='stat-label'>Messages</div></div>" +
+            "<div class='stat-card'><div class='stat-number'>{{totalUsers}}</div><div class='stat-label'>Total Users</div></div>" +
+            "</div>" +
+            "<div class='session-create card'>" +
+            "<h3>Create Chat Session</h3>" +
+            "<p>Create a password-protected chat session that others can join with different usernames.</p>" +
+            "{{#error}}<div class='alert alert-error'>{{error}}</div>{{/error}}" +
+            "<form action='/dashboard?user={{username}}' method='post'>" +
+            "<div class='form-group'><label>Session Password:</label>" +
+            "<input type='text' name='password' placeholder='Enter a password for your chat session' required></div>" +
+            "<button type='submit' class='btn btn-primary'>Create Session</button>" +
+            "</form>" +
+            "<div class='info-box'>" +
+            "<h4>💡 How it works:</h4>" +
+            "<ul>" +
+            "<li>You create a session with a password</li>" +
+            "<li>Share the chat URL and password with others</li>" +
+            "<li>Anyone can join with their own username</li>" +
+            "<li>All messages appear in the same chat room</li>" +
+            "</ul>" +
+            "</div>" +
+            "</div></div></body></html>");
+        
+        private final Template activeSessionTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Dashboard - Alpha Texting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(baseCss, dashboardCss, themeCss) + "</head><body class='{{theme}}-theme'>" +
+            NAVBAR +
+            "<div class='container'>" +
+            "<div class='session-active card'>" +
+            "<h3>Chat Session Active</h3>" +
+            "<div class='session-info'>" +
+            "<p><strong>Session Password:</strong> <code>{{sessionId}}</code></p>" +
+            "<p><strong>Share this URL:</strong></p>" +
+            "<input type='text' value='{{chatUrl}}' readonly onclick='this.select()' style='width:100%;padding:10px;margin:10px 0;font-family:monospace;background:#f8f9fa;border:2px solid #667eea;border-radius:8px;'>" +
+            "<button onclick='copyToClipboard(this.previousElementSibling.value)' style='background:#667eea;color:white;padding:10px 20px;border:none;border-radius:8px;cursor:pointer;margin:5px 0;'>Copy Chat URL</button>" +
+            "<p><strong>Instructions for others:</strong></p>" +
+            "<ol>" +
+            "<li>Open the chat URL on their device</li>" +
+            "<li>Enter the session password: <strong>{{sessionId}}</strong></li>" +
+            "<li>Enter their own username</li>" +
+            "<li>Start chatting!</li>" +
+            "</ol>" +
+            "</div>" +
+            "</div>" +
+            "<div class='chat-section card'>" +
+            "<h3>Chat Room</h3>" +
+            "<div id='chatContainer' class='chat-container'></div>" +
+            "<div class='message-input'>" +
+            "<input type='text' id='messageInput' placeholder='Type your message...'>" +
+            "<button onclick='sendMessage()'>📤</button>" +
+            "</div></div></div>" +
+            "{{&bootstrap}}" +
+            "<script src='" + chatJs + "'></script>" +
+            "</body></html>");
+        
+        private final Template profileTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Profile - Enhanced AlphaTexting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(baseCss, profileCss) + "</head><body>" +
+            NAVBAR +
+            "<div class='container'>" +
+            "<div class='profile-card card'>" +
+            "<div class='profile-header'>" +
+            "<div class='avatar'>{{#profilePicture}}<img src='{{profilePicture}}' alt='Profile'>{{/profilePicture}}{{^profilePicture}}👤{{/profilePicture}}</div>" +
+            "<h2>{{displayName}}</h2>" +
+            "<p class='username'>@{{username}}</p>" +
+            "</div>" +
+            "{{#message}}<div class='alert alert-success'>{{message}}</div>{{/message}}" +
+            "<form action='/profile?user={{username}}' method='post'>" +
+            "<div class='form-group'><label>Display Name:</label>" +
+            "<input type='text' name='displayName' value='{{displayName}}' required></div>" +
+            "<div class='form-group'><label>Email:</label>" +
+            "<input type='email' name='email' value='{{email}}'></div>" +
+            "<div class='form-group'><label>Phone Number:</label>" +
+            "<input type='tel' name='phoneNumber' value='{{phoneNumber}}'></div>" +
+            "<div class='form-group'><label>Bio:</label>" +
+            "<textarea name='bio' rows='3'>{{bio}}</textarea></div>" +
+            "<div class='form-group'><label>Location:</label>" +
+            "<input type='text' name='location' value='{{location}}'></div>" +
+            "<div class='form-group'><label>Website:</label>" +
+            "<input type='url' name='website' value='{{website}}'></div>" +
+            "<div class='form-group'><label>Profile Picture URL:</label>" +
+            "<input type='url' name='profilePicture' value='{{profilePicture}}'></div>" +
+            "<button type='submit' class='btn btn-primary'>Update Profile</button>" +
+            "</form></div></div></body></html>");
+        
+        private final Template settingsTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Settings - Alpha Texting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(baseCss, settingsCss, themeCss) + "</head><body class='{{theme}}-theme'>" +
+            NAVBAR +
+            "<div class='container'>" +
+            "<div class='settings-card card'>" +
+            "<h2>Settings</h2>" +
+            "{{#message}}<div class='alert alert-success'>{{message}}</div>{{/message}}" +
+            "<form action='/settings?user={{username}}' method='post' id='settingsForm'>" +
+            "<div class='settings-section'>" +
+            "<h3>🔔 Notifications & Alerts</h3>" +
+            toggle("notifications", "Browser Notifications") +
+            toggle("soundEnabled", "Sound Alerts") +
+            "</div>" +
+            "<div class='settings-section'>" +
+            "<h3>🎨 Appearance</h3>" +
+            "<div class='setting-item'>" +
+            "<label>Theme:</label>" +
+            "<select name='theme' class='theme-selector' onchange='previewTheme(this.value)'>" +
+            "<option value='auto'{{#themeAuto}} selected{{/themeAuto}}>Auto (System)</option>" +
+            "<option value='light'{{#themeLight}} selected{{/themeLight}}>Light Mode</option>" +
+            "<option value='dark'{{#themeDark}} selected{{/themeDark}}>Dark Mode</option>" +
+            "</select>" +
+            "</div>" +
+            "<div class='setting-item'>" +
+            "<label>Language:</label>" +
+            "<select name='language' class='language-selector'>" +
+            "<option value='english'{{#languageEnglish}} selected{{/languageEnglish}}>English</option>" +
+            "<option value='spanish'{{#languageSpanish}} selected{{/languageSpanish}}>Español</option>" +
+            "<option value='french'{{#languageFrench}} selected{{/languageFrench}}>Français</option>" +
+            "</select>" +
+            "</div>" +
+            toggle("compactMode", "Compact Message View") +
+            "</div>" +
+            "<div class='settings-section'>" +
+            "<h3>💬 Chat Behavior</h3>" +
+            toggle("autoRefresh", "Auto-refresh Messages") +
+            "<div class='setting-item'>" +
+            "<label>Refresh Interval:</label>" +
+            "<input type='range' name='refreshInterval' value='{{refreshInterval}}' min='500' max='5000' step='500' class='refresh-slider' oninput='updateRefreshDisplay(this.value)'>" +
+            "<span class='refresh-display'>{{refreshSeconds}}s</span>" +
+            "</div>" +
+            toggle("showTimestamps", "Show Message Timestamps") +
+            toggle("showTypingIndicators", "Show Typing Indicators") +
+            "<div class='setting-item'>" +
+            "<label>Max Messages to Display:</label>" +
+            "<input type='range' name='maxMessagesDisplay' value='{{maxMessagesDisplay}}' min='20' max='500' step='10' class='messages-slider' oninput='updateMessagesDisplay(this.value)'>" +
+            "<span class='messages-display'>{{maxMessagesDisplay}} messages</span>" +
+            "</div>" +
+            "</div>" +
+            "<div class='settings-section'>" +
+            "<h3>🔒 Privacy & Security</h3>" +
+            toggle("readReceipts", "Read Receipts") +
+            "<div class='setting-item'>" +
+            "<label>Session Timeout:</label>" +
+            "<input type='range' name='sessionTimeout' value='{{sessionTimeout}}' min='5' max='300' class='timeout-slider' oninput='updateTimeoutDisplay(this.value)'>" +
+            "<span class='timeout-display'>{{sessionTimeout}} minutes</span>" +
+            "</div>" +
+            "</div>" +
+            "<div class='settings-actions'>" +
+            "<button type='submit' class='btn btn-primary'>Save Settings</button>" +
+            "<button type='button' class='btn btn-secondary' onclick='resetSettings()'>Reset to Default</button>" +
+            "</div>" +
+            "</form></div></div>" +
+            "<script src='" + settingsJs + "'></script>" +
+            "</body></html>");
+        
+        private final Template mobileChatTemplate = Template.compile(
+            "<!DOCTYPE html><html><head><title>Join Chat - Alpha Texting</title>" +
+            "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
+            stylesheets(baseCss, mobileChatCss) + "</head><body>" +
+            "<div id='joinForm' class='join-form'>" +
+            "<div class='join-card'>" +
+            "<h2>Join Chat Session</h2>" +
+            "<p>Session ID: <strong>{{sessionId}}</strong></p>" +
+            "<div class='form-group'>" +
+            "<label>Session Password:</label>" +
+            "<input type='text' id='sessionPassword' placeholder='Enter session password' required>" +
+            "</div>" +
+            "<div class='form-group'>" +
+            "<label>Your Username:</label>" +
+            "<input type='text' id='username' placeholder='Enter your username' required>" +
+            "</div>" +
+            "<button onclick='joinSession()' class='btn btn-primary'>Join Chat</button>" +
+            "</div>" +
+            "</div>" +
+            "<div id='chatInterface' style='display:none;'>" +
+            "<div class='mobile-header'>Alpha Texting</div>" +
+            "<div id='chatContainer' class='mobile-chat-container'></div>" +
+            "<div class='mobile-input'>" +
+            "<input type='text' id='messageInput' placeholder='Type your message...'>" +
+            "<button onclick='sendMessage()'>📤</button>" +
+            "</div>" +
+            "</div>" +
+            "{{&bootstrap}}" +
+            "<script src='" + mobileChatJs + "'></script>" +
+            "</body></html>");
+        
         // HTML page generators
-        private String generateHomePage() {
+        private HtmlWriter generateHomePage() {
             return generateHomePage("");
         }
         
-        private String generateHomePage(String errorMessage) {
-            return "<!DOCTYPE html><html><head><title>Alpha Texting</title>" +
-                "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                "<style>" + getImprovedHomeCSS() + "</style></head><body>" +
-                "<div class='hero-section'>" +
-                "<div class='container'>" +
-                "<div class='header'>" +
-                "<h1 class='main-title'>Alpha Texting</h1>" +
-                "<p class='subtitle'>Professional cross-device chat with advanced features</p>" +
-                "</div>" +
-                (!errorMessage.isEmpty() ? "<div class='alert alert-error'>" + errorMessage + "</div>" : "") +
-                "<div class='auth-container'>" +
-                "<div class='auth-card login-card'>" +
-                "<h3>Welcome Back</h3>" +
-                "<form action='/login' method='post'>" +
-                "<div class='form-group'>" +
-                "<input type='text' name='username' placeholder='Enter your username' required>" +
-                "</div>" +
-                "<button type='submit' class='btn btn-primary'>Sign In</button>" +
-                "</form>" +
-                "</div>" +
-                "<div class='auth-card register-card'>" +
-                "<h3>Create Account</h3>" +
-                "<form action='/register' method='post'>" +
-                "<div class='form-group'>" +
-                "<input type='text' name='username' placeholder='Choose username' required>" +
-                "</div>" +
-                "<div class='form-group'>" +
-                "<input type='text' name='displayName' placeholder='Your display name' required>" +
-                "</div>" +
-                "<button type='submit' class='btn btn-secondary'>Get Started</button>" +
-                "</form>" +
-                "</div>" +
-                "</div>" +
-                "<div class='features'>" +
-                "<div class='feature'><div class='feature-icon'>💬</div><div class='feature-text'><strong>Advanced Messaging</strong><br>Reactions, replies, and real-time sync</div></div>" +
-                "<div class='feature'><div class='feature-icon'>🔍</div><div class='feature-text'><strong>Message Search</strong><br>Find any message instantly</div></div>" +
-                "<div class='feature'><div class='feature-icon'>🌙</div><div class='feature-text'><strong>Dark Mode</strong><br>Easy on the eyes</div></div>" +
-                "<div class='feature'><div class='feature-icon'>📱</div><div class='feature-text'><strong>Cross-Device</strong><br>Chat between phone and computer</div></div>" +
-                "</div>" +
-                "</div>" +
-                "</div></body></html>";
+        private HtmlWriter generateHomePage(String errorMessage) {
+            return homeTemplate.bind().set("error", errorMessage).render();
         }
         
-        private String generateDashboardPage(User user, String sessionId) {
+        HtmlWriter generateDashboardPage(User user, String sessionId) {
             return generateDashboardPage(user, sessionId, "");
         }
         
-        private String generateDashboardPage(User user, String sessionId, String message) {
+        private HtmlWriter generateDashboardPage(User user, String sessionId, String message) {
+            UserSettings userSettings = settings.getOrDefault(user.username, new UserSettings(user.username));
             if (sessionId == null) {
                 // Show session creation form
-                UserSettings userSettings = settings.getOrDefault(user.username, new UserSettings(user.username));
-                String themeCSS = getThemeCSS(userSettings.theme);
-                return "<!DOCTYPE html><html><head><title>Dashboard - Alpha Texting</title>" +
-                    "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                    "<style>" + getBaseCSS() + getDashboardCSS() + themeCSS + "</style></head><body class='" + userSettings.theme + "-theme'>" +
-                    generateNavbar(user) +
-                    "<div class='container'>" +
-                    "<div class='stats-grid'>" +
-                    "<div class='stat-card'><div class='stat-number'>" + user.totalSessions + "</div><div class='stat-label'>Sessions</div></div>" +
-                    "<div class='stat-card'><div class='stat-number'>" + user.totalMessages + "</div><div class='stat-label'>Messages</div></div>" +
-                    "<div class='stat-card'><div class='stat-number'>" + users.size() + "</div><div class='stat-label'>Total Users</div></div>" +
-                    "</div>" +
-                    "<div class='session-create card'>" +
-                    "<h3>Create Chat Session</h3>" +
-                    "<p>Create a password-protected chat session that others can join with different usernames.</p>" +
-                    (!message.isEmpty() ? "<div class='alert alert-error'>" + message + "</div>" : "") +
-                    "<form action='/dashboard?user=" + user.username + "' method='post'>" +
-                    "<div class='form-group'><label>Session Password:</label>" +
-                    "<input type='text' name='password' placeholder='Enter a password for your chat session' required></div>" +
-                    "<button type='submit' class='btn btn-primary'>Create Session</button>" +
-                    "</form>" +
-                    "<div class='info-box'>" +
-                    "<h4>💡 How it works:</h4>" +
-                    "<ul>" +
-                    "<li>You create a session with a password</li>" +
-                    "<li>Share the chat URL and password with others</li>" +
-                    "<li>Anyone can join with their own username</li>" +
-                    "<li>All messages appear in the same chat room</li>" +
-                    "</ul>" +
-                    "</div>" +
-                    "</div></div></body></html>";
+                return navbar(dashboardTemplate.bind(), user)
+                    .set("theme", userSettings.theme)
+                    .set("totalSessions", user.totalSessions)
+                    .set("totalMessages", user.totalMessages)
+                    .set("totalUsers", users.size())
+                    .set("error", message)
+                    .render();
             } else {
                 // Show active session
-                UserSettings userSettings = settings.getOrDefault(user.username, new UserSettings(user.username));
-                String themeCSS = getThemeCSS(userSettings.theme);
-                String chatUrl = "http://10.0.0.95:8082/chat/" + sessionId;
-                return "<!DOCTYPE html><html><head><title>Dashboard - Alpha Texting</title>" +
-                    "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                    "<style>" + getBaseCSS() + getDashboardCSS() + themeCSS + "</style></head><body class='" + userSettings.theme + "-theme'>" +
-                    generateNavbar(user) +
-                    "<div class='container'>" +
-                    "<div class='session-active card'>" +
-                    "<h3>Chat Session Active</h3>" +
-                    "<div class='session-info'>" +
-                    "<p><strong>Session Password:</strong> <code>" + sessionId + "</code></p>" +
-                    "<p><strong>Share this URL:</strong></p>" +
-                    "<input type='text' value='" + chatUrl + "' readonly onclick='this.select()' style='width:100%;padding:10px;margin:10px 0;font-family:monospace;background:#f8f9fa;border:2px solid #667eea;border-radius:8px;'>" +
-                    "<button onclick='copyToClipboard(\"" + chatUrl + "\")' style='background:#667eea;color:white;padding:10px 20px;border:none;border-radius:8px;cursor:pointer;margin:5px 0;'>Copy Chat URL</button>" +
-                    "<p><strong>Instructions for others:</strong></p>" +
-                    "<ol>" +
-                    "<li>Open the chat URL on their device</li>" +
-                    "<li>Enter the session password: <strong>" + sessionId + "</strong></li>" +
-                    "<li>Enter their own username</li>" +
-                    "<li>Start chatting!</li>" +
-                    "</ol>" +
-                    "</div>" +
-                    "</div>" +
-                    "<div class='chat-section card'>" +
-                    "<h3>Chat Room</h3>" +
-                    "<div id='chatContainer' class='chat-container'></div>" +
-                    "<div class='message-input'>" +
-                    "<input type='text' id='messageInput' placeholder='Type your message...'>" +
-                    "<button onclick='sendMessage()'>📤</button>" +
-                    "</div></div></div>" +
-                    "<script>" + getChatScript(sessionId, user.username, userSettings) + 
-                    "function copyToClipboard(text){navigator.clipboard.writeText(text).then(()=>{alert('📋 URL copied! Share this with others along with the password.');}).catch(()=>{prompt('Copy this URL:',text);});}" +
-                    "</script>" +
-                    "</body></html>";
-            }
-        }
-        
-        private String generateProfilePage(User user) {
+                return navbar(activeSessionTemplate.bind(), user)
+                    .set("theme", userSettings.theme)
+                    .set("sessionId", sessionId)
+                    .set("chatUrl", "http://10.0.0.95:8082/chat/" + sessionId)
+                    .set("bootstrap", chatBootstrap(sessionId, user.username, userSettings))
+                    .render();
+            }
+        }
+        
+        private HtmlWriter generateProfilePage(User user) {
             return generateProfilePage(user, "");
         }
         
-        private String generateProfilePage(User user, String message) {
+        private HtmlWriter generateProfilePage(User user, String message) {
             UserProfile profile = profiles.get(user.username);
             if (profile == null) profile = new UserProfile(user.username);
             
-            return "<!DOCTYPE html><html><head><title>Profile - Enhanced AlphaTexting</title>" +
-                "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                "<style>" + getBaseCSS() + getProfileCSS() + "</style></head><body>" +
-                generateNavbar(user) +
-                "<div class='container'>" +
-                "<div class='profile-card card'>" +
-                "<div class='profile-header'>" +
-                "<div class='avatar'>" + (!profile.profilePicture.isEmpty() ? 
-                    "<img src='" + profile.profilePicture + "' alt='Profile'>" : "👤") + "</div>" +
-                "<h2>" + user.displayName + "</h2>" +
-                "<p class='username'>@" + user.username + "</p>" +
-                "</div>" +
-                (!message.isEmpty() ? "<div class='alert alert-success'>" + message + "</div>" : "") +
-                "<form action='/profile?user=" + user.username + "' method='post'>" +
-                "<div class='form-group'><label>Display Name:</label>" +
-                "<input type='text' name='displayName' value='" + user.displayName + "' required></div>" +
-                "<div class='form-group'><label>Email:</label>" +
-                "<input type='email' name='email' value='" + (user.email != null ? user.email : "") + "'></div>" +
-                "<div class='form-group'><label>Phone Number:</label>" +
-                "<input type='tel' name='phoneNumber' value='" + profile.phoneNumber + "'></div>" +
-                "<div class='form-group'><label>Bio:</label>" +
-                "<textarea name='bio' rows='3'>" + profile.bio + "</textarea></div>" +
-                "<div class='form-group'><label>Location:</label>" +
-                "<input type='text' name='location' value='" + profile.location + "'></div>" +
-                "<div class='form-group'><label>Website:</label>" +
-                "<input type='url' name='website' value='" + profile.website + "'></div>" +
-                "<div class='form-group'><label>Profile Picture URL:</label>" +
-                "<input type='url' name='profilePicture' value='" + profile.profilePicture + "'></div>" +
-                "<button type='submit' class='btn btn-primary'>Update Profile</button>" +
-                "</form></div></div></body></html>";
-        }
-        
-        private String generateSettingsPage(User user, UserSettings userSettings) {
+            return navbar(profileTemplate.bind(), user)
+                .set("profilePicture", profile.profilePicture)
+                .set("message", message)
+                .set("email", user.email)
+                .set("phoneNumber", profile.phoneNumber)
+                .set("bio", profile.bio)
+                .set("location", profile.location)
+                .set("website", profile.website)
+                .render();
+        }
+        
+        HtmlWriter generateSettingsPage(User user, UserSettings userSettings) {
             return generateSettingsPage(user, userSettings, "");
         }
         
-        private String generateSettingsPage(User user, UserSettings userSettings, String message) {
-            String themeCSS = getThemeCSS(userSettings.theme);
-            return "<!DOCTYPE html><html><head><title>Settings - Alpha Texting</title>" +
-                "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                "<style>" + getBaseCSS() + getSettingsCSS() + themeCSS + "</style></head><body class='" + userSettings.theme + "-theme'>" +
-                generateNavbar(user) +
-                "<div class='container'>" +
-                "<div class='settings-card card'>" +
-                "<h2>Settings</h2>" +
-                (!message.isEmpty() ? "<div class='alert alert-success'>" + message + "</div>" : "") +
-                "<form action='/settings?user=" + user.username + "' method='post' id='settingsForm'>" +
-                "<div class='settings-section'>" +
-                "<h3>🔔 Notifications & Alerts</h3>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='notifications' class='toggle-input'" + (userSettings.notifications ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Browser Notifications" +
-                "</label>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='soundEnabled' class='toggle-input'" + (userSettings.soundEnabled ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Sound Alerts" +
-                "</label>" +
-                "</div>" +
-                "</div>" +
-                "<div class='settings-section'>" +
-                "<h3>🎨 Appearance</h3>" +
-                "<div class='setting-item'>" +
-                "<label>Theme:</label>" +
-                "<select name='theme' class='theme-selector' onchange='previewTheme(this.value)'>" +
-                "<option value='auto'" + ("auto".equals(userSettings.theme) ? " selected" : "") + ">Auto (System)</option>" +
-                "<option value='light'" + ("light".equals(userSettings.theme) ? " selected" : "") + ">Light Mode</option>" +
-                "<option value='dark'" + ("dark".equals(userSettings.theme) ? " selected" : "") + ">Dark Mode</option>" +
-                "</select>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label>Language:</label>" +
-                "<select name='language' class='language-selector'>" +
-                "<option value='english'" + ("english".equals(userSettings.language) ? " selected" : "") + ">English</option>" +
-                "<option value='spanish'" + ("spanish".equals(userSettings.language) ? " selected" : "") + ">Español</option>" +
-                "<option value='french'" + ("french".equals(userSettings.language) ? " selected" : "") + ">Français</option>" +
-                "</select>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='compactMode' class='toggle-input'" + (userSettings.compactMode ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Compact Message View" +
-                "</label>" +
-                "</div>" +
-                "</div>" +
-                "<div class='settings-section'>" +
-                "<h3>💬 Chat Behavior</h3>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='autoRefresh' class='toggle-input'" + (userSettings.autoRefresh ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Auto-refresh Messages" +
-                "</label>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label>Refresh Interval:</label>" +
-                "<input type='range' name='refreshInterval' value='" + userSettings.refreshInterval + "' min='500' max='5000' step='500' class='refresh-slider' oninput='updateRefreshDisplay(this.value)'>" +
-                "<span class='refresh-display'>" + (userSettings.refreshInterval / 1000.0) + "s</span>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='showTimestamps' class='toggle-input'" + (userSettings.showTimestamps ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Show Message Timestamps" +
-                "</label>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='showTypingIndicators' class='toggle-input'" + (userSettings.showTypingIndicators ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Show Typing Indicators" +
-                "</label>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label>Max Messages to Display:</label>" +
-                "<input type='range' name='maxMessagesDisplay' value='" + userSettings.maxMessagesDisplay + "' min='20' max='500' step='10' class='messages-slider' oninput='updateMessagesDisplay(this.value)'>" +
-                "<span class='messages-display'>" + userSettings.maxMessagesDisplay + " messages</span>" +
-                "</div>" +
-                "</div>" +
-                "<div class='settings-section'>" +
-                "<h3>🔒 Privacy & Security</h3>" +
-                "<div class='setting-item'>" +
-                "<label class='toggle-label'>" +
-                "<input type='checkbox' name='readReceipts' class='toggle-input'" + (userSettings.readReceipts ? " checked" : "") + ">" +
-                "<span class='toggle-slider'></span>" +
-                "Read Receipts" +
-                "</label>" +
-                "</div>" +
-                "<div class='setting-item'>" +
-                "<label>Session Timeout:</label>" +
-                "<input type='range' name='sessionTimeout' value='" + userSettings.sessionTimeout + "' min='5' max='300' class='timeout-slider' oninput='updateTimeoutDisplay(this.value)'>" +
-                "<span class='timeout-display'>" + userSettings.sessionTimeout + " minutes</span>" +
-                "</div>" +
-                "</div>" +
-                "<div class='settings-actions'>" +
-                "<button type='submit' class='btn btn-primary'>Save Settings</button>" +
-                "<button type='button' class='btn btn-secondary' onclick='resetSettings()'>Reset to Default</button>" +
-                "</div>" +
-                "</form></div></div>" +
-                "<script>" + getSettingsScript() + "</script>" +
-                "</body></html>";
-        }
-        
-        private String generateMobileChatPage(String sessionId) {
-            return "<!DOCTYPE html><html><head><title>Join Chat - Alpha Texting</title>" +
-                "<meta name='viewport' content='width=device-width, initial-scale=1'>" +
-                "<style>" + getBaseCSS() + getMobileChatCSS() + "</style></head><body>" +
-                "<div id='joinForm' class='join-form'>" +
-                "<div class='join-card'>" +
-                "<h2>Join Chat Session</h2>" +
-                "<p>Session ID: <strong>" + sessionId + "</strong></p>" +
-                "<div class='form-group'>" +
-                "<label>Session Password:</label>" +
-                "<input type='text' id='sessionPassword' placeholder='Enter session password' required>" +
-                "</div>" +
-                "<div class='form-group'>" +
-                "<label>Your Username:</label>" +
-                "<input type='text' id='username' placeholder='Enter your username' required>" +
-                "</div>" +
-                "<button onclick='joinSession()' class='btn btn-primary'>Join Chat</button>" +
-                "</div>" +
-                "</div>" +
-                "<div id='chatInterface' style='display:none;'>" +
-                "<div class='mobile-header'>Alpha Texting</div>" +
-                "<div id='chatContainer' class='mobile-chat-container'></div>" +
-                "<div class='mobile-input'>" +
-                "<input type='text' id='messageInput' placeholder='Type your message...'>" +
-                "<button onclick='sendMessage()'>📤</button>" +
-                "</div>" +
-                "</div>" +
-                "<script>" + getMobileChatScript(sessionId) + "</script>" +
-                "</body></html>";
+        private HtmlWriter generateSettingsPage(User user, UserSettings userSettings, String message) {
+            return navbar(settingsTemplate.bind(), user)
+                .set("theme", userSettings.theme)
+                .set("message", message)
+                .set("notifications", userSettings.notifications)
+                .set("soundEnabled", userSettings.soundEnabled)
+                .set("themeAuto", "auto".equals(userSettings.theme))
+                .set("themeLight", "light".equals(userSettings.theme))
+                .set("themeDark", "dark".equals(userSettings.theme))
+                .set("languageEnglish", "english".equals(userSettings.language))
+                .set("languageSpanish", "spanish".equals(userSettings.language))
+                .set("languageFrench", "french".equals(userSettings.language))
+                .set("compactMode", userSettings.compactMode)
+                .set("autoRefresh", userSettings.autoRefresh)
+                .set("refreshInterval", userSettings.refreshInterval)
+                .set("refreshSeconds", String.valueOf(userSettings.refreshInterval / 1000.0))
+                .set("showTimestamps", userSettings.showTimestamps)
+                .set("showTypingIndicators", userSettings.showTypingIndicators)
+                .set("maxMessagesDisplay", userSettings.maxMessagesDisplay)
+                .set("readReceipts", userSettings.readReceipts)
+                .set("sessionTimeout", userSettings.sessionTimeout)
+                .render();
+        }
+        
+        private HtmlWriter generateMobileChatPage(String sessionId) {
+            return mobileChatTemplate.bind()
+                .set("sessionId", sessionId)
+                .set("bootstrap", chatBootstrap(sessionId, null, null))
+                .render();
         }
         
         private String generate404Page() {
             return "<!DOCTYPE html><html><head><title>404 - Page Not Found</title>" +
-                "<style>" + getBaseCSS() + "</style></head><body>" +
+                stylesheets(baseCss) + "</head><body>" +
                 "<div class='container error-page'>" +
                 "<h1>404 - Page Not Found</h1>" +
                 "<p>The page you're looking for doesn't exist.</p>" +
@@ -1520,16 +6211,49 @@ public class Main {
                 "</div></body></html>";
         }
         
-        private String generateNavbar(User user) {
-            return "<nav class='navbar'>" +
-                "<div class='nav-brand'>Alpha Texting</div>" +
-                "<div class='nav-menu'>" +
-                "<a href='/dashboard?user=" + user.username + "'>Dashboard</a>" +
-                "<a href='/profile?user=" + user.username + "'>Profile</a>" +
-                "<a href='/settings?user=" + user.username + "'>Settings</a>" +
-                "<span class='nav-user'>Welcome, " + user.displayName + "</span>" +
-                "<a href='/'>Logout</a>" +
-                "</div></nav>";
+        private static Template.Bindings navbar(Template.Bindings page, User user) {
+            return page.set("username", user.username).set("displayName", user.displayName);
+        }
+        
+        // A settings checkbox whose checked state comes from the slot of the same name
+        private static String toggle(String name, String label) {
+            return "<div class='setting-item'>" +
+                "<label class='toggle-label'>" +
+                "<input type='checkbox' name='" + name + "' class='toggle-input'{{#" + name + "}} checked{{/" + name + "}}>" +
+                "<span class='toggle-slider'></span>" +
+                label +
+                "</label>" +
+                "</div>";
+        }
+        
+        private static String stylesheets(String... paths) {
+            StringBuilder links = new StringBuilder();
+            for (String path : paths) links.append("<link rel='stylesheet' href='").append(path).append("'>");
+            return links.toString();
+        }
+        
+        // Per-page values read by the static chat scripts, as JSON so user-supplied strings cannot break out
+        private static String chatBootstrap(String sessionId, String username, UserSettings userSettings) {
+            JsonWriter json = JsonWriter.acquire();
+            try {
+                json.beginObject().name("sessionId").value(sessionId).name("wsPort").value(webSocketPort);
+                if (username != null) json.name("username").value(username);
+                if (userSettings != null) {
+                    json.name("userSettings").beginObject()
+                        .name("autoRefresh").value(userSettings.autoRefresh)
+                        .name("refreshInterval").value(userSettings.refreshInterval)
+                        .name("showTimestamps").value(userSettings.showTimestamps)
+                        .name("showTypingIndicators").value(userSettings.showTypingIndicators)
+                        .name("maxMessagesDisplay").value(userSettings.maxMessagesDisplay)
+                        .name("compactMode").value(userSettings.compactMode)
+                        .name("soundEnabled").value(userSettings.soundEnabled)
+                        .endObject();
+                }
+                json.endObject();
+                return "<script>const ALPHA=" + json.toString().replace("</", "<\\/") + ";</script>";
+            } finally {
+                json.release();
+            }
         }
         
         // CSS and JavaScript methods
@@ -1630,25 +6354,22 @@ public class Main {
                 ".username{color:#666;margin:5px 0;font-size:1.1em}";
         }
         
-        private String getThemeCSS(String theme) {
-            if ("dark".equals(theme)) {
-                return ".dark-theme{background:#1a1a1a !important;color:#e2e8f0 !important}" +
-                    ".dark-theme .navbar{background:rgba(30,30,30,0.95) !important;color:#e2e8f0 !important}" +
-                    ".dark-theme .nav-brand{color:#667eea !important}" +
-                    ".dark-theme .nav-menu a{color:#e2e8f0 !important}" +
-                    ".dark-theme .card{background:rgba(40,40,40,0.95) !important;color:#e2e8f0 !important}" +
-                    ".dark-theme .settings-section{background:rgba(60,60,60,0.3) !important}" +
-                    ".dark-theme .form-group input, .dark-theme select{background:#2d3748 !important;border-color:#4a5568 !important;color:#e2e8f0 !important}" +
-                    ".dark-theme .form-group input:focus, .dark-theme select:focus{border-color:#667eea !important;background:#374151 !important}" +
+        // Both themes are scoped by the body class, so one stylesheet serves every setting (auto matches neither)
+        private String getThemeCSS() {
+            return ".dark-theme{background:#1a1a1a !important;color:#e2e8f0 !important}" +
+                ".dark-theme .navbar{background:rgba(30,30,30,0.95) !important;color:#e2e8f0 !important}" +
+                ".dark-theme .nav-brand{color:#667eea !important}" +
+                ".dark-theme .nav-menu a{color:#e2e8f0 !important}" +
+                ".dark-theme .card{background:rgba(40,40,40,0.95) !important;color:#e2e8f0 !important}" +
+                ".dark-theme .settings-section{background:rgba(60,60,60,0.3) !important}" +
+                ".dark-theme .form-group input, .dark-theme select{background:#2d3748 !important;border-color:#4a5568 !important;color:#e2e8f0 !important}" +
+                ".dark-theme .form-group input:focus, .dark-theme select:focus{border-color:#667eea !important;background:#374151 !important}" +
                     ".dark-theme .message{background:#374151 !important;border-color:#4a5568 !important}" +
-                    ".dark-theme .chat-container{background:#2d3748 !important}";
-            } else if ("light".equals(theme)) {
-                return ".light-theme{background:#f7fafc !important;color:#2d3748 !important}" +
-                    ".light-theme .navbar{background:rgba(255,255,255,0.95) !important}" +
-                    ".light-theme .card{background:rgba(255,255,255,0.95) !important}" +
-                    ".light-theme .settings-section{background:rgba(247,250,252,0.8) !important}";
-            }
-            return ""; // auto theme uses default styles
+                ".dark-theme .chat-container{background:#2d3748 !important}" +
+                ".light-theme{background:#f7fafc !important;color:#2d3748 !important}" +
+                ".light-theme .navbar{background:rgba(255,255,255,0.95) !important}" +
+                ".light-theme .card{background:rgba(255,255,255,0.95) !important}" +
+                ".light-theme .settings-section{background:rgba(247,250,252,0.8) !important}";
         }
         
         private String getSettingsScript() {
@@ -1735,14 +6456,16 @@ public class Main {
                 ".message small{display:block;font-size:0.8em;opacity:0.7;margin-top:5px}";
         }
         
-        private String getChatScript(String sessionId, String username, UserSettings userSettings) {
-            return "const sessionId='" + sessionId + "';const username='" + username + "';" +
-                "const userSettings={autoRefresh:" + userSettings.autoRefresh + ",refreshInterval:" + userSettings.refreshInterval + ",showTimestamps:" + userSettings.showTimestamps + ",showTypingIndicators:" + userSettings.showTypingIndicators + ",maxMessagesDisplay:" + userSettings.maxMessagesDisplay + ",compactMode:" + userSettings.compactMode + ",soundEnabled:" + userSettings.soundEnabled + "};" +
-                "let lastMessageCount=0;" +
+        private String getChatScript() {
+            return "const sessionId=ALPHA.sessionId;const username=ALPHA.username;" +
+                "const wsPort=ALPHA.wsPort;let liveSocket=null;" +
+                "const userSettings=ALPHA.userSettings;" +
+                "let lastSeq=0;" +
                 "function sendMessage(){" +
                 "const input=document.getElementById('messageInput');" +
                 "const content=input.value.trim();" +
                 "if(!content)return;" +
+                "if(liveSocket){liveSocket.send(JSON.stringify({type:'message',content:content,senderDevice:'computer',username:username}));input.value='';return;}" +
                 "fetch('/api/messages/'+sessionId,{method:'POST',headers:{'Content-Type':'application/x-www-form-urlencoded'},body:'content='+encodeURIComponent(content)+'&senderDevice=computer&username='+username})" +
                 ".then(r=>r.json()).then(data=>{if(data.success){input.value='';pollMessages();}}).catch(console.error);" +
                 "}" +
@@ -1754,27 +6477,56 @@ public class Main {
                 "const displayName = msgUsername || (device==='computer'?'Computer':'Phone');" +
                 "div.innerHTML='<div class=\"message-header\">'+deviceIcon+' Hello from '+displayName+'</div><div class=\"message-content\">'+content+'</div><small>'+timestamp+'</small>';" +
                 "container.appendChild(div);container.scrollTop=container.scrollHeight;" +
+                "return div;" +
                 "}" +
-                "function pollMessages(){" +
-                "fetch('/api/messages/'+sessionId).then(r=>r.json()).then(messages=>{" +
-                "const container=document.getElementById('chatContainer');" +
-                "if(messages.length!==lastMessageCount){" +
-                "container.innerHTML='';" +
-                "messages.forEach(msg=>{" +
-                "addMessage(msg.deviceType,msg.content,msg.timestamp,msg.username);" +
+                "function renderDelta(data){" +
+                "data.messages.forEach(msg=>{" +
+                "if(msg.seq<=lastSeq)return;" +
+                "addMessage(msg.deviceType,msg.content,msg.timestamp,msg.username).id='msg-'+msg.id;" +
+                "lastSeq=msg.seq;" +
                 "});" +
-                "lastMessageCount=messages.length;" +
+                "lastSeq=Math.max(lastSeq,data.lastSeq);" +
+                "return data.hasMore;" +
                 "}" +
+                "function pollMessages(){" +
+                "fetch('/api/messages/'+sessionId+'?since='+lastSeq).then(r=>r.json()).then(data=>{" +
+                "if(renderDelta(data))pollMessages();" +
                 "}).catch(console.error);" +
                 "}" +
-                "setInterval(pollMessages,1000);" +
+                "function waitForMessages(){" +
+                "fetch('/api/messages/'+sessionId+'/wait?since='+lastSeq+'&timeout=25s').then(r=>r.json()).then(data=>{" +
+                "renderDelta(data);waitForMessages();" +
+                "}).catch(()=>setTimeout(waitForMessages,2000));" +
+                "}" +
+                "function applyEdit(msg){const el=document.getElementById('msg-'+msg.id);if(el)el.querySelector('.message-content').textContent=msg.content;}" +
+                "function applyDelete(msg){const el=document.getElementById('msg-'+msg.id);if(el)el.remove();}" +
+                "function openStream(){" +
+                "const stream=new EventSource('/api/stream/'+sessionId+'?since='+lastSeq);" +
+                "stream.onmessage=e=>{const msg=JSON.parse(e.data);renderDelta({messages:[msg],lastSeq:msg.seq});};" +
+                "stream.addEventListener('edit',e=>applyEdit(JSON.parse(e.data)));" +
+                "stream.addEventListener('delete',e=>applyDelete(JSON.parse(e.data)));" +
+                "}" +
+                "function openFallback(){if(window.EventSource){openStream();}else{waitForMessages();}}" +
+                "function openSocket(){" +
+                "const socket=new WebSocket((location.protocol==='https:'?'wss://':'ws://')+location.hostname+':'+wsPort+'/ws/'+encodeURIComponent(sessionId)+'?since='+lastSeq);" +
+                "let opened=false;" +
+                "socket.onopen=()=>{opened=true;liveSocket=socket;};" +
+                "socket.onmessage=e=>{const event=JSON.parse(e.data);" +
+                "if(event.type==='message'){renderDelta({messages:[event.data],lastSeq:event.seq});}" +
+                "else if(event.type==='edit'){applyEdit(event.data);}" +
+                "else if(event.type==='delete'){applyDelete(event.data);}};" +
+                "socket.onclose=()=>{liveSocket=null;if(opened){setTimeout(openSocket,2000);}else{openFallback();}};" +
+                "}" +
+                "if(wsPort&&window.WebSocket){openSocket();}else{openFallback();}" +
                 "pollMessages();" +
-                "document.getElementById('messageInput').addEventListener('keypress',e=>{if(e.key==='Enter')sendMessage();});";
+                "document.getElementById('messageInput').addEventListener('keypress',e=>{if(e.key==='Enter')sendMessage();});" +
+                "function copyToClipboard(text){navigator.clipboard.writeText(text).then(()=>{alert('📋 URL copied! Share this with others along with the password.');}).catch(()=>{prompt('Copy this URL:',text);});}";
         }
         
-        private String getMobileChatScript(String sessionId) {
-            return "const sessionId='" + sessionId + "';" +
-                "let lastMessageCount=0;" +
+        private String getMobileChatScript() {
+            return "const sessionId=ALPHA.sessionId;" +
+                "const wsPort=ALPHA.wsPort;let liveSocket=null;" +
+                "let lastSeq=0;" +
                 "let currentUser='';" +
                 "function joinSession(){" +
                 "const password=document.getElementById('sessionPassword').value.trim();" +
@@ -1791,6 +6543,7 @@ public class Main {
                 "const input=document.getElementById('messageInput');" +
                 "const content=input.value.trim();" +
                 "if(!content)return;" +
+                "if(liveSocket){liveSocket.send(JSON.stringify({type:'message',content:content,senderDevice:'phone',username:currentUser}));input.value='';return;}" +
                 "fetch('/api/messages/'+sessionId,{method:'POST',headers:{'Content-Type':'application/x-www-form-urlencoded'},body:'content='+encodeURIComponent(content)+'&senderDevice=phone&username='+currentUser})" +
                 ".then(r=>r.json()).then(data=>{if(data.success){input.value='';pollMessages();}}).catch(console.error);" +
                 "}" +
@@ -1802,20 +6555,47 @@ public class Main {
                 "const displayName = msgUsername || (device==='computer'?'Computer':'Phone');" +
                 "div.innerHTML='<div class=\"message-header\">'+deviceIcon+' Hello from '+displayName+'</div><div class=\"message-content\">'+content+'</div><small>'+timestamp+'</small>';" +
                 "container.appendChild(div);container.scrollTop=container.scrollHeight;" +
+                "return div;" +
                 "}" +
-                "function pollMessages(){" +
-                "fetch('/api/messages/'+sessionId).then(r=>r.json()).then(messages=>{" +
-                "const container=document.getElementById('chatContainer');" +
-                "if(messages.length!==lastMessageCount){" +
-                "container.innerHTML='';" +
-                "messages.forEach(msg=>{" +
-                "addMessage(msg.deviceType,msg.content,msg.timestamp,msg.username);" +
+                "function renderDelta(data){" +
+                "data.messages.forEach(msg=>{" +
+                "if(msg.seq<=lastSeq)return;" +
+                "addMessage(msg.deviceType,msg.content,msg.timestamp,msg.username).id='msg-'+msg.id;" +
+                "lastSeq=msg.seq;" +
                 "});" +
-                "lastMessageCount=messages.length;" +
+                "lastSeq=Math.max(lastSeq,data.lastSeq);" +
+                "return data.hasMore;" +
                 "}" +
+                "function pollMessages(){" +
+                "fetch('/api/messages/'+sessionId+'?since='+lastSeq).then(r=>r.json()).then(data=>{" +
+                "if(renderDelta(data))pollMessages();" +
                 "}).catch(console.error);" +
                 "}" +
-                "setInterval(pollMessages,1000);" +
+                "function waitForMessages(){" +
+                "fetch('/api/messages/'+sessionId+'/wait?since='+lastSeq+'&timeout=25s').then(r=>r.json()).then(data=>{" +
+                "renderDelta(data);waitForMessages();" +
+                "}).catch(()=>setTimeout(waitForMessages,2000));" +
+                "}" +
+                "function applyEdit(msg){const el=document.getElementById('msg-'+msg.id);if(el)el.querySelector('.message-content').textContent=msg.content;}" +
+                "function applyDelete(msg){const el=document.getElementById('msg-'+msg.id);if(el)el.remove();}" +
+                "function openStream(){" +
+                "const stream=new EventSource('/api/stream/'+sessionId+'?since='+lastSeq);" +
+                "stream.onmessage=e=>{const msg=JSON.parse(e.data);renderDelta({messages:[msg],lastSeq:msg.seq});};" +
+                "stream.addEventListener('edit',e=>applyEdit(JSON.parse(e.data)));" +
+                "stream.addEventListener('delete',e=>applyDelete(JSON.parse(e.data)));" +
+                "}" +
+                "function openFallback(){if(window.EventSource){openStream();}else{waitForMessages();}}" +
+                "function openSocket(){" +
+                "const socket=new WebSocket((location.protocol==='https:'?'wss://':'ws://')+location.hostname+':'+wsPort+'/ws/'+encodeURIComponent(sessionId)+'?since='+lastSeq);" +
+                "let opened=false;" +
+                "socket.onopen=()=>{opened=true;liveSocket=socket;};" +
+                "socket.onmessage=e=>{const event=JSON.parse(e.data);" +
+                "if(event.type==='message'){renderDelta({messages:[event.data],lastSeq:event.seq});}" +
+                "else if(event.type==='edit'){applyEdit(event.data);}" +
+                "else if(event.type==='delete'){applyDelete(event.data);}};" +
+                "socket.onclose=()=>{liveSocket=null;if(opened){setTimeout(openSocket,2000);}else{openFallback();}};" +
+                "}" +
+                "if(wsPort&&window.WebSocket){openSocket();}else{openFallback();}" +
                 "pollMessages();" +
                 "document.getElementById('messageInput').addEventListener('keypress',e=>{if(e.key==='Enter')sendMessage();});" +
                 "setTimeout(()=>{fetch('/api/messages/'+sessionId,{method:'POST',headers:{'Content-Type':'application/x-www-form-urlencoded'},body:'content=📱 Connected from phone&senderDevice=phone&username='+currentUser}).then(pollMessages);},1000);";
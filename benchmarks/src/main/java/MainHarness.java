@@ -0,0 +1,140 @@
+import alpha.bench.ServerHarness;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+// Default-package side of the benchmarks: the only class here that touches Main's nested classes
+public class MainHarness implements ServerHarness {
+    private static final String[] USERNAMES = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+    private static final String[] WORDS = { "hello", "hey", "are", "you", "still", "coming", "tonight", "meeting",
+        "moved", "to", "three", "running", "late", "traffic", "sounds", "good", "see", "there", "lunch", "tomorrow",
+        "what", "time", "works", "for", "everyone", "pushed", "the", "fix", "deploy", "looks", "green", "thanks",
+        "can", "someone", "review", "my", "branch", "photos", "from", "weekend", "😂", "👍", "déjà", "vu" };
+    
+    private final Main.ApiHandler api = new Main.ApiHandler();
+    private final Main.MainHandler pages = new Main.MainHandler();
+    private final Main.User user = new Main.User("alice", "Alice");
+    private final Main.UserSettings userSettings = new Main.UserSettings("alice");
+    
+    public Object newSession(int messages) {
+        Main.SessionLog log = new Main.SessionLog();
+        Random random = new Random(42);
+        for (int i = 0; i < messages; i++) {
+            String content = sentence(random);
+            String device = random.nextBoolean() ? "computer" : "phone";
+            String username = USERNAMES[random.nextInt(USERNAMES.length)];
+            Main.Message msg;
+            if (i > 0 && random.nextInt(4) == 0) {
+                Main.Message target = log.get(1 + random.nextInt(i));
+                msg = new Main.Message(content, device, device, username, target.id, target.content, target.username);
+            } else {
+                msg = new Main.Message(content, device, device, username);
+            }
+            log.append(msg);
+        }
+        return log;
+    }
+    
+    public String messageId(Object session, long seq) {
+        return ((Main.SessionLog) session).get(seq).id;
+    }
+    
+    public int fullSessionJson(Object session) {
+        Main.JsonWriter json = Main.JsonWriter.acquire();
+        try {
+            json.beginArray();
+            Main.ApiHandler.writeMessagesJson(json, ((Main.SessionLog) session).range(0, Integer.MAX_VALUE));
+            json.endArray();
+            return json.size();
+        } finally {
+            json.release();
+        }
+    }
+    
+    public int pollDelta(Object session, long since) {
+        Main.JsonWriter json = api.buildDeltaJson((Main.SessionLog) session, since, 500);
+        try {
+            return json.size();
+        } finally {
+            json.release();
+        }
+    }
+    
+    public int search(Object session, String query, int limit) {
+        Main.SessionLog log = (Main.SessionLog) session;
+        List<Main.Message> results = log.searchIndex.search(log, query, Long.MAX_VALUE, limit + 1);
+        return results.size();
+    }
+    
+    public Object findById(Object session, String messageId) {
+        return ((Main.SessionLog) session).findById(messageId);
+    }
+    
+    public int decodeForm(byte[] body, String[] names) {
+        Main.FormData form = new Main.FormData(body);
+        int present = 0;
+        for (String name : names) {
+            if (form.get(name) != null) present++;
+        }
+        return present;
+    }
+    
+    public int dashboardPage(String sessionId) {
+        Main.HtmlWriter html = pages.generateDashboardPage(user, sessionId);
+        try {
+            return html.size();
+        } finally {
+            html.release();
+        }
+    }
+    
+    public int settingsPage() {
+        Main.HtmlWriter html = pages.generateSettingsPage(user, userSettings);
+        try {
+            return html.size();
+        } finally {
+            html.release();
+        }
+    }
+    
+    public int qrPng(String url) {
+        return Main.QRCode.encode(url.getBytes(java.nio.charset.StandardCharsets.UTF_8)).toPng(8, 4).length;
+    }
+    
+    public int qrSvg(String url) {
+        return Main.QRCode.encode(url.getBytes(java.nio.charset.StandardCharsets.UTF_8)).toSvg(4).length();
+    }
+    
+    public void writeRecoveryData(File dir, int sessions, int messagesPerSession) throws IOException {
+        Main.WriteAheadLog.open(dir, 1000, 256 * 1024, false);
+        Random random = new Random(42);
+        for (int s = 0; s < sessions; s++) {
+            String sessionId = "bench-" + s;
+            String lastId = null;
+            for (int i = 0; i < messagesPerSession; i++) {
+                String device = random.nextBoolean() ? "computer" : "phone";
+                String replyTo = lastId != null && random.nextInt(4) == 0 ? lastId : null;
+                lastId = Main.ApiHandler.postMessage(sessionId, sentence(random), device,
+                    USERNAMES[random.nextInt(USERNAMES.length)], replyTo).id;
+            }
+        }
+        Main.WriteAheadLog.flush();
+        Main.SnapshotStore.snapshotNow();
+    }
+    
+    public long recover(File dir) throws IOException {
+        return Main.SnapshotStore.loadLatest(dir);
+    }
+    
+    private static String sentence(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 3 + random.nextInt(20);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
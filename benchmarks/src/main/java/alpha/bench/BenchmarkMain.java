@@ -0,0 +1,19 @@
+package alpha.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Entry point of benchmarks.jar: plain JMH, with the GC profiler on unless a profiler is chosen explicitly,
+// so every run reports allocation per operation next to its time
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-prof") && !arguments.contains("-h") && !arguments.contains("-l")
+                && !arguments.contains("-lp") && !arguments.contains("-lprof")) {
+            arguments.add(0, "gc");
+            arguments.add(0, "-prof");
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
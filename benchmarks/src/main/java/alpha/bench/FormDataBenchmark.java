@@ -0,0 +1,64 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Form decoding (what extractParam used to do) on the bodies the pages actually post
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormDataBenchmark {
+    private static final String[] MESSAGE_FIELDS = { "content", "senderDevice", "username", "replyToId" };
+    private static final String[] SETTINGS_FIELDS = { "notifications", "soundEnabled", "theme", "language",
+        "compactMode", "readReceipts", "sessionTimeout", "autoRefresh", "refreshInterval", "showTimestamps",
+        "showTypingIndicators", "maxMessagesDisplay" };
+    
+    private ServerHarness harness;
+    private byte[] plainMessage;
+    private byte[] encodedMessage;
+    private byte[] settingsUpdate;
+    
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.load();
+        plainMessage = bytes("content=see+you+there&senderDevice=phone&username=alice");
+        encodedMessage = bytes("content=Running%20late%2C%20traffic%20on%20the%20bridge%0Asave%20me%20a%20seat%20%F0%9F%98%82"
+            + "&senderDevice=computer&username=bob&replyToId=msg_1792318926629_42");
+        settingsUpdate = bytes("notifications=on&soundEnabled=on&theme=dark&language=english&readReceipts=on"
+            + "&sessionTimeout=60&autoRefresh=on&refreshInterval=1000&showTimestamps=on&showTypingIndicators=on"
+            + "&maxMessagesDisplay=100");
+    }
+    
+    @Benchmark
+    public int plainMessage() {
+        return harness.decodeForm(plainMessage, MESSAGE_FIELDS);
+    }
+    
+    @Benchmark
+    public int encodedMessage() {
+        return harness.decodeForm(encodedMessage, MESSAGE_FIELDS);
+    }
+    
+    @Benchmark
+    public int settingsUpdate() {
+        return harness.decodeForm(settingsUpdate, SETTINGS_FIELDS);
+    }
+    
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,53 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Message list responses: the legacy full-session array and the incremental poll that replaced it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageJsonBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    int messages;
+    
+    private ServerHarness harness;
+    private Object session;
+    
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.load();
+        session = harness.newSession(messages);
+    }
+    
+    @Benchmark
+    public int fullSession() {
+        return harness.fullSessionJson(session);
+    }
+    
+    // A client one screen behind: the common case for polls and woken long-polls
+    @Benchmark
+    public int pollLast20() {
+        return harness.pollDelta(session, messages - 20);
+    }
+    
+    // Nothing new: what most polls find
+    @Benchmark
+    public int pollEmpty() {
+        return harness.pollDelta(session, messages);
+    }
+}
@@ -0,0 +1,45 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Page rendering from the precompiled templates
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageBenchmark {
+    private ServerHarness harness;
+    
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.load();
+    }
+    
+    @Benchmark
+    public int dashboard() {
+        return harness.dashboardPage(null);
+    }
+    
+    @Benchmark
+    public int activeSession() {
+        return harness.dashboardPage("team-standup");
+    }
+    
+    @Benchmark
+    public int settings() {
+        return harness.settingsPage();
+    }
+}
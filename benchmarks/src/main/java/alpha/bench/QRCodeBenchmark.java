@@ -0,0 +1,42 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One QR code encoded and drawn from scratch, as on a cache miss in QRHandler
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QRCodeBenchmark {
+    private static final String CHAT_URL = "http://10.0.0.95:8082/chat/team-standup";
+    
+    private ServerHarness harness;
+    
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.load();
+    }
+    
+    @Benchmark
+    public int png() {
+        return harness.qrPng(CHAT_URL);
+    }
+    
+    @Benchmark
+    public int svg() {
+        return harness.qrSvg(CHAT_URL);
+    }
+}
@@ -0,0 +1,59 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Startup cost: loading a snapshot of sessions x messages back into memory. Each parameter set gets a
+// fresh JVM, since the write-ahead log can only be opened once per process.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RecoveryBenchmark {
+    @Param({ "10", "1000" })
+    int sessions;
+    
+    @Param({ "1000" })
+    int messagesPerSession;
+    
+    private ServerHarness harness;
+    private File dir;
+    
+    @Setup
+    public void setUp() throws IOException {
+        harness = ServerHarness.load();
+        dir = Files.createTempDirectory("alpha-recovery").toFile();
+        harness.writeRecoveryData(dir, sessions, messagesPerSession);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+    
+    @Benchmark
+    public long loadSnapshot() throws IOException {
+        return harness.recover(dir);
+    }
+}
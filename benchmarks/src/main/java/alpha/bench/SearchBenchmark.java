@@ -0,0 +1,58 @@
+package alpha.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// MessageSearch.searchMessages and findMessageById against one session of each size
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final String[] QUERIES = { "hel", "meeting", "deploy green", "lunch tom", "déjà", "zzz" };
+    private static final int IDS = 1024;
+    
+    @Param({ "1000", "10000", "100000" })
+    int messages;
+    
+    private ServerHarness harness;
+    private Object session;
+    private String[] ids;
+    private int next;
+    
+    @Setup
+    public void setUp() {
+        harness = ServerHarness.load();
+        session = harness.newSession(messages);
+        Random random = new Random(7);
+        ids = new String[IDS];
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = harness.messageId(session, 1 + random.nextInt(messages));
+        }
+    }
+    
+    // Cycles through common prefixes, a two-word query and a miss
+    @Benchmark
+    public int search() {
+        return harness.search(session, QUERIES[next++ % QUERIES.length], 20);
+    }
+    
+    @Benchmark
+    public Object findById() {
+        return harness.findById(session, ids[next++ & (IDS - 1)]);
+    }
+}
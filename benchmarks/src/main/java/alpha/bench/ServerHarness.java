@@ -0,0 +1,50 @@
+package alpha.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+// The server's classes sit in the default package, which named packages cannot import, and JMH refuses
+// benchmarks in the default package. MainHarness implements this next to Main and is loaded by name.
+public interface ServerHarness {
+    static ServerHarness load() {
+        try {
+            return (ServerHarness) Class.forName("MainHarness").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("MainHarness is missing from the benchmark classpath", e);
+        }
+    }
+    
+    // A session log filled with generated chat traffic (a quarter of it replies); same seed, same messages
+    Object newSession(int messages);
+    
+    String messageId(Object session, long seq);
+    
+    // GET /api/messages/{id}: the whole session as a JSON array; returns the encoded size
+    int fullSessionJson(Object session);
+    
+    // GET /api/messages/{id}?since=N, as a poll or a woken long-poll builds it
+    int pollDelta(Object session, long since);
+    
+    // GET /api/search/{id}?q=...: one page of results plus the look-ahead
+    int search(Object session, String query, int limit);
+    
+    Object findById(Object session, String messageId);
+    
+    // One form body decoded and every listed field looked up; returns how many were present
+    int decodeForm(byte[] body, String[] names);
+    
+    // The dashboard, with the active-session view when sessionId is not null; returns the page size
+    int dashboardPage(String sessionId);
+    
+    int settingsPage();
+    
+    int qrPng(String url);
+    
+    int qrSvg(String url);
+    
+    // Opens a write-ahead log in dir, posts the messages through the API path and snapshots them
+    void writeRecoveryData(File dir, int sessions, int messagesPerSession) throws IOException;
+    
+    // What startup does before replaying the log: load the newest snapshot into memory
+    long recover(File dir) throws IOException;
+}
@@ -0,0 +1,115 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load generator for a running Alpha Texting server.
+//
+//   java tools/LoadTest.java [baseUrl] [clients] [seconds] [sessions]
+//
+// Each client thread loops over a mix of incremental message polls, message posts,
+// searches and QR renders, and the run reports throughput and latency percentiles.
+// tools/load-test.sh restarts the server with different core counts and executors
+// to show how throughput scales.
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8082";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int sessions = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        
+        // Seed every session with some history so polls and searches have work to do
+        for (int s = 0; s < sessions; s++) {
+            for (int i = 0; i < 50; i++) {
+                post(baseUrl + "/api/messages/load" + s, "content=" + URLEncoder.encode("seed message " + i, "UTF-8")
+                    + "&senderDevice=computer&username=loadtest");
+            }
+        }
+        
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] latencies = new long[clients][];
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+        
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                String session = baseUrl + "/api/messages/load" + (client % sessions);
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        int pick = random.nextInt(100);
+                        if (pick < 60) {
+                            get(session + "?since=" + random.nextInt(50));
+                        } else if (pick < 80) {
+                            post(session, "content=load+" + client + "&senderDevice=phone&username=loadtest");
+                        } else if (pick < 90) {
+                            get(baseUrl + "/api/search/load" + (client % sessions) + "?q=seed");
+                        } else {
+                            get(baseUrl + "/qr/load" + (client % sessions));
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+                    samples[count++] = System.nanoTime() - start;
+                }
+                latencies[client] = Arrays.copyOf(samples, count);
+                done.countDown();
+            }, "load-client-" + c);
+            thread.start();
+        }
+        done.await();
+        
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("clients=%d seconds=%d requests=%d errors=%d%n", clients, seconds, all.length, errors.get());
+        System.out.printf("throughput=%.0f req/s%n", all.length / (double) seconds);
+        System.out.printf("latency p50=%.2fms p99=%.2fms max=%.2fms%n",
+            percentile(all, 0.50), percentile(all, 0.99), all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+    
+    private static void get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        drain(connection);
+    }
+    
+    private static void post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        byte[] bytes = body.getBytes("UTF-8");
+        connection.setFixedLengthStreamingMode(bytes.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        }
+        drain(connection);
+    }
+    
+    // Reads the whole body so the keep-alive connection can be reused
+    private static void drain(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try (InputStream body = in) {
+                body.transferTo(new ByteArrayOutputStream());
+            }
+        }
+        if (status >= 500) throw new IOException("HTTP " + status);
+    }
+}
@@ -0,0 +1,57 @@
+#!/bin/bash
+
+# Runs tools/LoadTest.java against fresh servers pinned to 1, 2, 4, ... cores
+# for each executor mode, to show how request throughput scales with cores.
+# The server gets the lower half of the machine and the load generator the
+# upper half, so the two never compete for a core. Each run starts from an
+# empty data directory so earlier runs' sessions are not recovered.
+# Usage: tools/load-test.sh [clients] [seconds]
+
+CLIENTS=${1:-64}
+SECONDS_PER_RUN=${2:-10}
+TOTAL_CORES=$(getconf _NPROCESSORS_ONLN)
+MAX_CORES=$((TOTAL_CORES / 2))
+
+if ! command -v taskset > /dev/null; then
+    echo "taskset (util-linux) is needed to pin the server and the load generator to cores" >&2
+    exit 1
+fi
+if [ "$MAX_CORES" -lt 1 ]; then
+    echo "Needs at least 2 cores: one for the server and one for the load generator" >&2
+    exit 1
+fi
+CLIENT_CPUS="$MAX_CORES-$((TOTAL_CORES - 1))"
+
+cd "$(dirname "$0")/.." || exit 1
+OUT_DIR=$(mktemp -d)
+javac -encoding UTF-8 -d "$OUT_DIR" Main.java || exit 1
+
+for EXECUTOR in dispatcher pool virtual; do
+    CORES=1
+    while [ "$CORES" -le "$MAX_CORES" ]; do
+        # taskset limits where the server runs; ActiveProcessorCount makes the JVM size its pools to match
+        taskset -c "0-$((CORES - 1))" java -XX:ActiveProcessorCount="$CORES" -Dalpha.executor="$EXECUTOR" -Dalpha.rate=off \
+            -Dalpha.data.dir="$OUT_DIR/data-$EXECUTOR-$CORES" -Djava.awt.headless=true -cp "$OUT_DIR" Main > /dev/null 2>&1 &
+        SERVER_PID=$!
+        WAITED=0
+        until curl -s -o /dev/null http://localhost:8082/; do
+            if ! kill -0 "$SERVER_PID" 2>/dev/null || [ "$WAITED" -ge 150 ]; then
+                echo "Server did not start (executor=$EXECUTOR cores=$CORES)" >&2
+                kill "$SERVER_PID" 2>/dev/null
+                rm -rf "$OUT_DIR"
+                exit 1
+            fi
+            sleep 0.2
+            WAITED=$((WAITED + 1))
+        done
+        
+        echo "=== executor=$EXECUTOR cores=$CORES (load generator on cores $CLIENT_CPUS) ==="
+        taskset -c "$CLIENT_CPUS" java tools/LoadTest.java http://localhost:8082 "$CLIENTS" "$SECONDS_PER_RUN"
+        
+        kill "$SERVER_PID"
+        wait "$SERVER_PID" 2>/dev/null
+        CORES=$((CORES * 2))
+    done
+done
+
+rm -rf "$OUT_DIR"